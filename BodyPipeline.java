@@ -0,0 +1,159 @@
+package pbd;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/*
+ * This class runs the per body work of a step, the parts that do not depend on any other body, over all of
+ * 	the bodies at once on a ForkJoinPool.
+ * That is the integrate stage (NGon.update: integrateAcceleration, integrateVelocity, Collision.update,
+ * 	the origin and the hull hierarchy refit) and the Verlet stage, or any other Stage given to run.
+ * The bodies are split into contiguous chunks, about four per worker, so a slow chunk does not hold the others up.
+ * Below a threshold the stages simply loop on the calling thread, forking would cost more than it saves.
+ * 	~By default the threshold follows the measured cost per body of each stage: going parallel pays once the
+ * 		time saved across the workers is more than the cost of handing the work to the pool.
+ * 	~Only runs on the calling thread are measured, a parallel run would count the fork overhead as work.
+ * 		A stage runs there until it has been measured, and again every so often to follow changes in its cost.
+ * A pipeline keeps those measurements, so it is meant to be driven from one thread at a time.
+ * The result does not depend on the path taken, every body is stepped by the same code either way.
+ */
+
+public class BodyPipeline {
+	//Rough cost of handing a stage to the pool and joining it, in nanoseconds
+	static final private double forkCost = 50000.0;
+	//Weight of a new measurement in the running estimate of a stage's cost per body
+	static final private double costSmoothing = 0.25;
+	//Every this many runs of a stage one is kept on the calling thread to measure it again
+	static final private int resample = 32;
+	//Smallest chunk handed to a worker
+	static final private int minChunk = 16;
+
+	//A piece of per body work, called once for body [index] of the array handed to run.
+	//It may only touch that body and entry [index] of its own output arrays.
+	public interface Stage {
+		void run(NGon body, int index);
+	}
+
+	//This class is the running estimate of what one stage costs per body, in nanoseconds.
+	private static class Cost {
+		private double perBody = 0.0;//0 until measured
+		private int runs = 0;
+	}
+
+	private ForkJoinPool pool;
+	private int fixedThreshold;//0 when the threshold follows the measured cost
+	private Cost integrateCost = new Cost(), verletCost = new Cost(), stageCost = new Cost();
+
+	//Constructor uses the common pool and picks the threshold from the measured cost.
+	public BodyPipeline() {
+		this(ForkJoinPool.commonPool());
+	}
+
+	//Constructor for a specific pool, the threshold is picked from the measured cost.
+	public BodyPipeline(ForkJoinPool pool) {
+		this.pool = pool;
+		this.fixedThreshold = 0;
+	}
+
+	//Constructor for a specific pool and a fixed body count at which to go parallel, e.g. 1 to always fork
+	//	or Integer.MAX_VALUE to never fork.
+	public BodyPipeline(ForkJoinPool pool, int threshold) throws IllegalArgumentException {
+		if (threshold < 1) throw new IllegalArgumentException("The threshold needs to be a POSITIVE value.");
+		this.pool = pool;
+		this.fixedThreshold = threshold;
+	}
+
+	//This class is one range of bodies, split in half until it is no larger than a chunk.
+	private static class Chunk extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private NGon[] bodies;
+		private int from, to, chunkSize;
+		private Stage stage;
+
+		private Chunk(NGon[] bodies, int from, int to, int chunkSize, Stage stage) {
+			this.bodies = bodies;
+			this.from = from;
+			this.to = to;
+			this.chunkSize = chunkSize;
+			this.stage = stage;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= chunkSize) {
+				for (int i = from; i < to; ++i) {
+					stage.run(bodies[i], i);
+				}
+				return;
+			}
+			int middle = from + (to - from) / 2;
+			invokeAll(new Chunk(bodies, from, middle, chunkSize, stage), new Chunk(bodies, middle, to, chunkSize, stage));
+		}
+	}
+
+	//This method runs a stage for bodies [0, count).
+	public void run(NGon[] bodies, int count, Stage stage) {
+		run(bodies, count, stage, stageCost);
+	}
+
+	//This method returns the body count from which a stage with the given cost runs in parallel.
+	private int getThreshold(Cost cost) {
+		int workers = pool.getParallelism();
+		if (workers < 2) return Integer.MAX_VALUE;
+		if (fixedThreshold > 0) return fixedThreshold;
+		if (cost.perBody <= 0.0) return Integer.MAX_VALUE;
+		//count * perBody * (1 - 1 / workers) is the time saved, it has to beat the fork cost
+		double bodies = forkCost / (cost.perBody * (1.0 - 1.0 / workers));
+		return (int)Math.min(Integer.MAX_VALUE, Math.max(2.0 * workers, Math.ceil(bodies)));
+	}
+
+	//This method runs a stage on the path its cost calls for, and measures the runs on the calling thread.
+	private void run(NGon[] bodies, int count, Stage stage, Cost cost) {
+		if (count <= 0) return;
+		boolean measure = fixedThreshold == 0 && (cost.perBody <= 0.0 || ++cost.runs % resample == 0);
+		if (!measure && count >= getThreshold(cost)) {
+			int chunkSize = Math.max(minChunk, count / (pool.getParallelism() * 4));
+			pool.invoke(new Chunk(bodies, 0, count, chunkSize, stage));
+			return;
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < count; ++i) {
+			stage.run(bodies[i], i);
+		}
+		if (!measure) return;
+		double measured = (double)(System.nanoTime() - start) / count;
+		cost.perBody = (cost.perBody <= 0.0) ? measured : cost.perBody + (measured - cost.perBody) * costSmoothing;
+	}
+
+	//This method integrates bodies [0, count) with NGon.update.
+	//inView[i] is set to whether body i is still within the view bounds, the return is how many are not.
+	public int integrate(NGon[] bodies, int count, double dT, Collision viewBounds, boolean[] inView) {
+		run(bodies, count, (body, i) -> inView[i] = body.update(dT, viewBounds), integrateCost);
+		int outside = 0;
+		for (int i = 0; i < count; ++i) {
+			if (!inView[i]) ++outside;
+		}
+		return outside;
+	}
+
+	//This method integrates bodies [0, count) with NGon.update, body i with a step of dT[i].
+	//inView[i] is set to whether body i is still within the view bounds, the return is how many are not.
+	public int integrate(NGon[] bodies, int count, double[] dT, Collision viewBounds, boolean[] inView) {
+		run(bodies, count, (body, i) -> inView[i] = body.update(dT[i], viewBounds), integrateCost);
+		int outside = 0;
+		for (int i = 0; i < count; ++i) {
+			if (!inView[i]) ++outside;
+		}
+		return outside;
+	}
+
+	//This method recomputes the velocities of bodies [0, count) from their change in position.
+	public void verlet(NGon[] bodies, int count, double dT) {
+		run(bodies, count, (body, i) -> body.verlet(dT), verletCost);
+	}
+
+	//This method recomputes the velocities of bodies [0, count), body i over a step of dT[i].
+	public void verlet(NGon[] bodies, int count, double[] dT) {
+		run(bodies, count, (body, i) -> body.verlet(dT[i]), verletCost);
+	}
+}
@@ -60,6 +60,22 @@ public class Collision {
 		return u > 0 && v > 0 && (u + v) < 1.0;*/
 	}
 	
+	//This method returns the time of impact, as a fraction [0, 1] of the motion from p0 to p1, where
+	//	a moving position crosses the line segment AB.
+	//A negative value is returned when the motion does not cross the segment (parallel motion included).
+	static public double segmentIntersection(Vec2 p0, Vec2 p1, Vec2 a, Vec2 b) {
+		double dX = p1.x - p0.x, dY = p1.y - p0.y;
+		double eX = b.x - a.x, eY = b.y - a.y;
+		double denominator = dX * eY - dY * eX;
+		if (denominator == 0.0) return -1.0;
+		double aX = a.x - p0.x, aY = a.y - p0.y;
+		//t is along the motion, s is along the segment
+		double t = (aX * eY - aY * eX) / denominator;
+		double s = (aX * dY - aY * dX) / denominator;
+		if (t < 0.0 || t > 1.0 || s < 0.0 || s > 1.0) return -1.0;
+		return t;
+	}
+	
 	//This method modifies the second argument to contain the components of a 2-tuple which
 	//	have the smallest value, tested with the components of the first argument.
 	static public void minVec2(Vec2 testVec, Vec2 minVec) {
@@ -80,7 +96,7 @@ public class Collision {
 		min.x = hullNew[0].x;
 		min.y = hullNew[0].y;
 		max.x = hullNew[0].x;
-		min.y = hullNew[0].y;
+		max.y = hullNew[0].y;
 		for (int i = 0; i < hullNew.length; ++i) {
 			minVec2(hullNew[i], min);
 			minVec2(hullOld[i], min);
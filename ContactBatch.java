@@ -0,0 +1,151 @@
+package pbd;
+
+import java.util.Arrays;
+
+/*
+ * This class stores every contact (position to line segment) constraint of a frame together, rather than
+ * 	as one Constraint object per contact.
+ * The positions are referenced by their index within a particle table handed to the solve method, and the
+ * 	indices and solve weights are kept in parallel primitive arrays.
+ * The solve is the same inequality problem as the default Constraint.solve method, with the masses used the
+ * 	same way: they are the shares of the correction, a mass of 0 being immovable (so in effect inverse masses).
+ * 	~Unlike Constraint, a reference with a share is moved as well, its two line positions split its share by
+ * 		where the incident position lies along the line, so a contact between two dynamic bodies is only
+ * 		corrected once between them rather than fully by each side.
+ * A contact against a reference that cannot move or turn (e.g. the ground) can be given the line's unit
+ * 	normal up front, such as an NGonPrototype rest normal, which saves the normalization in every iteration.
+ */
+
+public class ContactBatch {
+	//Starting capacity for the arrays, they double in size when full
+	static final private int initialCapacity = 64;
+	//Violations below this depth are left alone, same slop as the Constraint class
+	static final private double slop = 0.03;
+
+	//Parallel arrays, entry [i] of each describes the same constraint
+	private int[] incident;
+	private int[] referenceA, referenceB;
+	private double[] incidentWeight, referenceWeight;//the masses handed to add, 0 for an immovable side
+	private double[] normalX, normalY;//fixed unit normal of the reference line, NaN to take it from the line
+	private int count;
+
+	//Constructor builds empty arrays ready to be filled each frame.
+	public ContactBatch() {
+		incident = new int[initialCapacity];
+		referenceA = new int[initialCapacity];
+		referenceB = new int[initialCapacity];
+		incidentWeight = new double[initialCapacity];
+		referenceWeight = new double[initialCapacity];
+		normalX = new double[initialCapacity];
+		normalY = new double[initialCapacity];
+		count = 0;
+	}
+
+	//This method adds a contact of an incident position against the line from reference A to B.
+	//The reference is assumed to have infinite mass, as in the Constraint class.
+	public void add(int incidentIndex, int referenceIndexA, int referenceIndexB) {
+		add(incidentIndex, referenceIndexA, referenceIndexB, 1.0, 0.0);
+	}
+
+	//This method adds a contact against a reference line that keeps the given unit normal for the whole solve.
+	//The normal has to match the orientation of the line from A to B, {-(B.y - A.y), B.x - A.x} normalized.
+	public void addFixedNormal(int incidentIndex, int referenceIndexA, int referenceIndexB, double nx, double ny) {
+		add(incidentIndex, referenceIndexA, referenceIndexB, 1.0, 0.0);
+		normalX[count - 1] = nx;
+		normalY[count - 1] = ny;
+	}
+
+	//This method adds a contact with custom masses for the incident and reference, see the class comment.
+	public void add(int incidentIndex, int referenceIndexA, int referenceIndexB,
+			double incidentMass, double referenceMass) throws IllegalArgumentException {
+		if (incidentMass < 0.0 || referenceMass < 0.0 || incidentMass + referenceMass <= 0.0) throw new IllegalArgumentException("A contact needs a positive mass to solve against.");
+		if (count == incident.length) {
+			int capacity = count * 2;
+			incident = Arrays.copyOf(incident, capacity);
+			referenceA = Arrays.copyOf(referenceA, capacity);
+			referenceB = Arrays.copyOf(referenceB, capacity);
+			incidentWeight = Arrays.copyOf(incidentWeight, capacity);
+			referenceWeight = Arrays.copyOf(referenceWeight, capacity);
+			normalX = Arrays.copyOf(normalX, capacity);
+			normalY = Arrays.copyOf(normalY, capacity);
+		}
+		incident[count] = incidentIndex;
+		referenceA[count] = referenceIndexA;
+		referenceB[count] = referenceIndexB;
+		incidentWeight[count] = incidentMass;
+		referenceWeight[count] = referenceMass;
+		normalX[count] = Double.NaN;
+		normalY[count] = Double.NaN;
+		++count;
+	}
+
+	//This method returns how many constraints are currently in the batch.
+	public int size() {
+		return count;
+	}
+
+	//This method empties the batch without giving up the allocated arrays.
+	public void clear() {
+		count = 0;
+	}
+
+	//This method returns the deepest penetration among the contacts, zero if none are violated.
+	public double maxViolation(Vec2[] particles) {
+		double max = 0.0;
+		for (int i = 0; i < count; ++i) {
+			Vec2 inc = particles[incident[i]];
+			Vec2 refA = particles[referenceA[i]];
+			Vec2 refB = particles[referenceB[i]];
+			double nx = normalX[i], ny = normalY[i];
+			if (Double.isNaN(nx)) {
+				nx = -(refB.y - refA.y);
+				ny = refB.x - refA.x;
+				double mag = 1.0 / Math.sqrt(nx * nx + ny * ny);
+				nx *= mag;
+				ny *= mag;
+			}
+			double violation = nx * (inc.x - refA.x) + ny * (inc.y - refA.y);
+			if (violation > max) max = violation;
+		}
+		return max;
+	}
+	
+	//This method solves every contact in the batch once.
+	//A reference with a mass takes its share on its two line positions, weighted by where the incident lies.
+	public void solve(Vec2[] particles) {
+		for (int i = 0; i < count; ++i) {
+			Vec2 inc = particles[incident[i]];
+			Vec2 refA = particles[referenceA[i]];
+			Vec2 refB = particles[referenceB[i]];
+			//Perpendicular normal of the reference line, unless it was given
+			double nx = normalX[i], ny = normalY[i];
+			if (Double.isNaN(nx)) {
+				nx = -(refB.y - refA.y);
+				ny = refB.x - refA.x;
+				double mag = 1.0 / Math.sqrt(nx * nx + ny * ny);
+				nx *= mag;
+				ny *= mag;
+			}
+			//Point to plane distance from the incident point to the reference line
+			double violation = nx * (inc.x - refA.x) + ny * (inc.y - refA.y);
+			if (violation <= slop) continue;
+			double wI = incidentWeight[i], wR = referenceWeight[i];
+			//Where the incident lies along the reference line, which splits the reference share between its ends
+			double s = 0.0;
+			if (wR > 0.0) {
+				double lx = refB.x - refA.x, ly = refB.y - refA.y;
+				double lengthSq = lx * lx + ly * ly;
+				if (lengthSq > 0.0) s = Math.min(1.0, Math.max(0.0, ((inc.x - refA.x) * lx + (inc.y - refA.y) * ly) / lengthSq));
+			}
+			double j = violation / (wI + wR * ((1.0 - s) * (1.0 - s) + s * s));
+			inc.x -= (j * nx) * wI;
+			inc.y -= (j * ny) * wI;
+			if (wR > 0.0) {
+				refA.x += (j * nx) * wR * (1.0 - s);
+				refA.y += (j * ny) * wR * (1.0 - s);
+				refB.x += (j * nx) * wR * s;
+				refB.y += (j * ny) * wR * s;
+			}
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package pbd;
+
+import java.util.Arrays;
+
+/*
+ * This class stores every distance constraint of a frame together, rather than as one DistanceConstraint
+ * 	object per pair of positions.
+ * The positions are referenced by their index within a particle table handed to the solve method, and the
+ * 	index pairs and rest distances are kept in parallel primitive arrays.
+ * Keeping a single type per batch lets the solve loop be one tight loop without any virtual method calls,
+ * 	which the JIT is free to inline and unroll.
+ * An assumption that equal weight in the solve is used for these positions -- i.e. points of like mass.
+ */
+
+public class DistanceBatch {
+	//Starting capacity for the arrays, they double in size when full
+	static final private int initialCapacity = 64;
+
+	//Parallel arrays, entry [i] of each describes the same constraint
+	private int[] incident;
+	private int[] reference;
+	private double[] distance;
+	private int count;
+
+	//Constructor builds empty arrays ready to be filled each frame.
+	public DistanceBatch() {
+		incident = new int[initialCapacity];
+		reference = new int[initialCapacity];
+		distance = new double[initialCapacity];
+		count = 0;
+	}
+
+	//This method adds a constraint between two particle indices that preserves the given distance.
+	public void add(int incidentIndex, int referenceIndex, double distance) {
+		if (count == incident.length) {
+			int capacity = count * 2;
+			incident = Arrays.copyOf(incident, capacity);
+			reference = Arrays.copyOf(reference, capacity);
+			this.distance = Arrays.copyOf(this.distance, capacity);
+		}
+		incident[count] = incidentIndex;
+		reference[count] = referenceIndex;
+		this.distance[count] = distance;
+		++count;
+	}
+
+	//This method returns how many constraints are currently in the batch.
+	public int size() {
+		return count;
+	}
+
+	//These methods return the parts of constraint [i], for building structures over the constraint graph.
+	public int getIncident(int i) {
+		return incident[i];
+	}
+	
+	public int getReference(int i) {
+		return reference[i];
+	}
+	
+	public double getDistance(int i) {
+		return distance[i];
+	}
+	
+	//This method empties the batch without giving up the allocated arrays.
+	public void clear() {
+		count = 0;
+	}
+
+	//This method returns the sum of the squared errors of the constraints, how far from solved they are.
+	public double residual(Vec2[] particles) {
+		double sum = 0.0;
+		for (int i = 0; i < count; ++i) {
+			Vec2 inc = particles[incident[i]];
+			Vec2 ref = particles[reference[i]];
+			double dx = inc.x - ref.x;
+			double dy = inc.y - ref.y;
+			double error = Math.sqrt(dx * dx + dy * dy) - distance[i];
+			sum += error * error;
+		}
+		return sum;
+	}
+	
+	//This method solves every constraint in the batch once, same math as DistanceConstraint.solve
+	//	but without allocating a temporary vector per constraint.
+	public void solve(Vec2[] particles) {
+		for (int i = 0; i < count; ++i) {
+			Vec2 inc = particles[incident[i]];
+			Vec2 ref = particles[reference[i]];
+			double dx = inc.x - ref.x;
+			double dy = inc.y - ref.y;
+			double curDist = dx * dx + dy * dy;
+			if (curDist == 0.0) {
+				//pick an arbitrary normal -- unlikely to run, same as DistanceConstraint
+				double violation = (curDist - distance[i]) * 0.5;
+				inc.y += violation;
+				ref.y -= violation;
+			} else {
+				curDist = Math.sqrt(curDist);
+				double violation = (curDist - distance[i]) * 0.5 / curDist;
+				inc.x -= dx * violation;
+				inc.y -= dy * violation;
+				ref.x += dx * violation;
+				ref.y += dy * violation;
+			}
+		}
+	}
+}
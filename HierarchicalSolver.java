@@ -0,0 +1,226 @@
+package pbd;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+/*
+ * This class speeds up the distance constraint solve of large meshes and long ropes.
+ * Gauss-Seidel only moves a correction one constraint further per iteration, so a long chain needs about
+ * 	as many iterations as it has links before it feels stiff.
+ * Here the constraint graph is coarsened into levels of clusters: every unclustered particle takes its
+ * 	unclustered neighbours into a new cluster, and clusters are joined wherever a constraint joined their
+ * 	members, with a rest length from the rest positions of the cluster centers.
+ * The coarse constraints only resist stretching. Cluster centers of a rope or mesh that bends come closer
+ * 	together without any fine constraint being violated, so pulling them back to their rest distance would
+ * 	add a bending stiffness the body does not have. The rest shape is taken to be the extended one (a
+ * 	straight rope, an undeformed mesh), so clusters farther apart than at rest are always stretched.
+ * Solving goes coarsest level first, each cluster is a point at the center of its particles, and the change
+ * 	of each cluster center is then added to every particle of the cluster (prolongation) before the next
+ * 	finer level is solved, ending with the regular solve of the fine DistanceBatch.
+ * The hierarchy only depends on the constraint topology and rest shape, build it once per body layout.
+ */
+
+public class HierarchicalSolver {
+	//Coarsening stops once a level has this few clusters
+	static final private int minClusters = 4;
+
+	private int particleCount;
+	private int levelCount;
+	//Per coarse level, level 0 being the first coarsening of the particles
+	private int[][] cluster;//[level][particle] -> cluster holding the particle, -1 if it has no constraints
+	private int[][] clusterParticles;//[level][cluster] -> how many particles the cluster holds
+	private int[] clusterCount;
+	private int[][] constraintA, constraintB;
+	private double[][] restLength;
+	//Scratch space for the cluster centers
+	private double[] centerX, centerY, startX, startY;
+
+	//Constructor builds the levels from the constraints of a batch over particles [0, particleCount),
+	//	restPositions holds the rest (undeformed) position of each of those particles.
+	public HierarchicalSolver(DistanceBatch constraints, Vec2[] restPositions, int particleCount) throws IllegalArgumentException {
+		if (restPositions.length < particleCount) throw new IllegalArgumentException("Need a rest position for each of the " + particleCount + " particles.");
+		this.particleCount = particleCount;
+		cluster = new int[0][];
+		clusterParticles = new int[0][];
+		clusterCount = new int[0];
+		constraintA = new int[0][];
+		constraintB = new int[0][];
+		restLength = new double[0][];
+
+		//Level of the particles themselves, nodes are particles and edges the constraints
+		int nodeCount = particleCount;
+		int edgeCount = constraints.size();
+		int[] edgeA = new int[edgeCount], edgeB = new int[edgeCount];
+		for (int i = 0; i < edgeCount; ++i) {
+			edgeA[i] = constraints.getIncident(i);
+			edgeB[i] = constraints.getReference(i);
+		}
+		int[] nodeParticles = new int[nodeCount];
+		double[] restX = new double[nodeCount], restY = new double[nodeCount];
+		int[] particleNode = new int[particleCount];
+		for (int p = 0; p < particleCount; ++p) {
+			nodeParticles[p] = 1;
+			restX[p] = restPositions[p].x;
+			restY[p] = restPositions[p].y;
+			particleNode[p] = -1;
+		}
+		for (int i = 0; i < edgeCount; ++i) {
+			particleNode[edgeA[i]] = edgeA[i];
+			particleNode[edgeB[i]] = edgeB[i];
+		}
+
+		while (nodeCount > minClusters && edgeCount > 0) {
+			//Adjacency of the current level in flat arrays
+			int[] start = new int[nodeCount + 1];
+			for (int i = 0; i < edgeCount; ++i) {
+				++start[edgeA[i] + 1];
+				++start[edgeB[i] + 1];
+			}
+			for (int n = 0; n < nodeCount; ++n) start[n + 1] += start[n];
+			int[] fill = Arrays.copyOf(start, nodeCount);
+			int[] neighbours = new int[edgeCount * 2];
+			for (int i = 0; i < edgeCount; ++i) {
+				neighbours[fill[edgeA[i]]++] = edgeB[i];
+				neighbours[fill[edgeB[i]]++] = edgeA[i];
+			}
+			//Greedy clustering, a node and its unclustered neighbours
+			int[] assign = new int[nodeCount];
+			Arrays.fill(assign, -1);
+			int next = 0;
+			for (int n = 0; n < nodeCount; ++n) {
+				if (assign[n] != -1 || start[n] == start[n + 1]) continue;
+				assign[n] = next;
+				for (int k = start[n]; k < start[n + 1]; ++k) {
+					if (assign[neighbours[k]] == -1) assign[neighbours[k]] = next;
+				}
+				++next;
+			}
+			if (next >= nodeCount || next < 2) break;
+
+			//Cluster sizes and rest centers
+			int[] coarseParticles = new int[next];
+			double[] coarseX = new double[next], coarseY = new double[next];
+			for (int n = 0; n < nodeCount; ++n) {
+				int c = assign[n];
+				if (c < 0) continue;
+				coarseParticles[c] += nodeParticles[n];
+				coarseX[c] += restX[n] * nodeParticles[n];
+				coarseY[c] += restY[n] * nodeParticles[n];
+			}
+			for (int c = 0; c < next; ++c) {
+				coarseX[c] /= coarseParticles[c];
+				coarseY[c] /= coarseParticles[c];
+			}
+			//Constraints between different clusters, once per pair
+			HashSet<Long> pairs = new HashSet<Long>();
+			int[] coarseA = new int[edgeCount], coarseB = new int[edgeCount];
+			int coarseEdges = 0;
+			for (int i = 0; i < edgeCount; ++i) {
+				int a = assign[edgeA[i]], b = assign[edgeB[i]];
+				if (a == b) continue;
+				long key = ((long)Math.min(a, b) << 32) | Math.max(a, b);
+				if (!pairs.add(key)) continue;
+				coarseA[coarseEdges] = a;
+				coarseB[coarseEdges] = b;
+				++coarseEdges;
+			}
+			double[] coarseRest = new double[coarseEdges];
+			for (int i = 0; i < coarseEdges; ++i) {
+				double dx = coarseX[coarseA[i]] - coarseX[coarseB[i]];
+				double dy = coarseY[coarseA[i]] - coarseY[coarseB[i]];
+				coarseRest[i] = Math.sqrt(dx * dx + dy * dy);
+			}
+			for (int p = 0; p < particleCount; ++p) {
+				if (particleNode[p] >= 0) particleNode[p] = assign[particleNode[p]];
+			}
+			if (coarseEdges == 0) break;
+
+			//Keep the level
+			cluster = Arrays.copyOf(cluster, levelCount + 1);
+			clusterParticles = Arrays.copyOf(clusterParticles, levelCount + 1);
+			clusterCount = Arrays.copyOf(clusterCount, levelCount + 1);
+			constraintA = Arrays.copyOf(constraintA, levelCount + 1);
+			constraintB = Arrays.copyOf(constraintB, levelCount + 1);
+			restLength = Arrays.copyOf(restLength, levelCount + 1);
+			cluster[levelCount] = Arrays.copyOf(particleNode, particleCount);
+			clusterParticles[levelCount] = coarseParticles;
+			clusterCount[levelCount] = next;
+			constraintA[levelCount] = Arrays.copyOf(coarseA, coarseEdges);
+			constraintB[levelCount] = Arrays.copyOf(coarseB, coarseEdges);
+			restLength[levelCount] = coarseRest;
+			++levelCount;
+
+			//The clusters are the nodes of the next level
+			nodeCount = next;
+			nodeParticles = coarseParticles;
+			restX = coarseX;
+			restY = coarseY;
+			edgeA = constraintA[levelCount - 1];
+			edgeB = constraintB[levelCount - 1];
+			edgeCount = coarseEdges;
+		}
+
+		int largest = (levelCount > 0) ? clusterCount[0] : 0;
+		centerX = new double[largest];
+		centerY = new double[largest];
+		startX = new double[largest];
+		startY = new double[largest];
+	}
+
+	//This method returns how many coarse levels were built, zero if the graph was too small to coarsen.
+	public int getLevelCount() {
+		return levelCount;
+	}
+
+	//This method solves every coarse level, coarsest first, for a number of iterations each and moves
+	//	the particles by the change of their clusters.
+	//The fine constraints still need to be solved afterwards.
+	public void solve(Vec2[] particles, int iterations) {
+		for (int level = levelCount - 1; level >= 0; --level) {
+			int[] owner = cluster[level];
+			int[] size = clusterParticles[level];
+			int count = clusterCount[level];
+			//Restrict, each cluster center is the mean of its particles
+			Arrays.fill(centerX, 0, count, 0.0);
+			Arrays.fill(centerY, 0, count, 0.0);
+			for (int p = 0; p < particleCount; ++p) {
+				int c = owner[p];
+				if (c < 0) continue;
+				centerX[c] += particles[p].x;
+				centerY[c] += particles[p].y;
+			}
+			for (int c = 0; c < count; ++c) {
+				centerX[c] /= size[c];
+				centerY[c] /= size[c];
+				startX[c] = centerX[c];
+				startY[c] = centerY[c];
+			}
+			//Solve, a cluster moves less the more particles it holds
+			int[] a = constraintA[level], b = constraintB[level];
+			double[] rest = restLength[level];
+			for (int it = 0; it < iterations; ++it) {
+				for (int i = 0; i < a.length; ++i) {
+					int ca = a[i], cb = b[i];
+					double dx = centerX[ca] - centerX[cb];
+					double dy = centerY[ca] - centerY[cb];
+					double curDist = Math.sqrt(dx * dx + dy * dy);
+					if (curDist <= rest[i]) continue;//only stretch is corrected
+					double violation = (curDist - rest[i]) / curDist;
+					double wa = (double)size[cb] / (size[ca] + size[cb]);
+					double wb = 1.0 - wa;
+					centerX[ca] -= dx * violation * wa;
+					centerY[ca] -= dy * violation * wa;
+					centerX[cb] += dx * violation * wb;
+					centerY[cb] += dy * violation * wb;
+				}
+			}
+			//Prolong, every particle follows its cluster
+			for (int p = 0; p < particleCount; ++p) {
+				int c = owner[p];
+				if (c < 0) continue;
+				particles[p].x += centerX[c] - startX[c];
+				particles[p].y += centerY[c] - startY[c];
+			}
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package pbd;
+
+/*
+ * This class is a bounding volume hierarchy over the fan of triangles a body's hull makes with its center,
+ * 	triangle [i] being {vertex[i], vertex[i + 1], center} as used by Mechanics.intersectionNarrow.
+ * Neighbouring triangles around a hull are neighbours in space, so the tree simply halves the index range
+ * 	at each level, which never changes and lets the tree be an implicit complete binary tree in arrays:
+ * 	~Node 1 is the root, the children of node k are 2k and 2k + 1.
+ * 	~Leaf node (leafCount + i) bounds triangle i, unused leaves hold empty (inverted) bounds.
+ * Since the topology is fixed only the bounds need to be recomputed, refit, after the vertices move.
+ * A point query then descends only into the nodes whose bounds contain the point, O(log W) for W triangles
+ * 	rather than testing all of them.
+ */
+
+public class HullHierarchy {
+	private int triangleCount;
+	private int leafCount;
+	//Node bounds, indexed by node
+	private double[] minX, minY, maxX, maxY;
+	//Traversal stack, reused between queries
+	private int[] stack;
+
+	//Constructor sizes the tree for a hull with the given amount of vertices (and so triangles).
+	public HullHierarchy(int triangleCount) throws IllegalArgumentException {
+		if (triangleCount < 1) throw new IllegalArgumentException("A hierarchy needs at least one triangle.");
+		this.triangleCount = triangleCount;
+		leafCount = 1;
+		int depth = 1;
+		while (leafCount < triangleCount) {
+			leafCount <<= 1;
+			++depth;
+		}
+		minX = new double[leafCount * 2];
+		minY = new double[leafCount * 2];
+		maxX = new double[leafCount * 2];
+		maxY = new double[leafCount * 2];
+		stack = new int[depth + 1];
+		for (int n = 0; n < leafCount * 2; ++n) {
+			minX[n] = minY[n] = Double.MAX_VALUE;
+			maxX[n] = maxY[n] = -Double.MAX_VALUE;
+		}
+	}
+
+	//This method recomputes every node's bounds from the current hull positions, leaves first.
+	public void refit(Vec2[] vertices, Vec2 center) {
+		for (int i = 0; i < triangleCount; ++i) {
+			Vec2 a = vertices[i];
+			Vec2 b = (i == triangleCount - 1) ? vertices[0] : vertices[i + 1];
+			int n = leafCount + i;
+			minX[n] = Math.min(center.x, Math.min(a.x, b.x));
+			minY[n] = Math.min(center.y, Math.min(a.y, b.y));
+			maxX[n] = Math.max(center.x, Math.max(a.x, b.x));
+			maxY[n] = Math.max(center.y, Math.max(a.y, b.y));
+		}
+		for (int n = leafCount - 1; n >= 1; --n) {
+			int l = n * 2, r = l + 1;
+			minX[n] = Math.min(minX[l], minX[r]);
+			minY[n] = Math.min(minY[l], minY[r]);
+			maxX[n] = Math.max(maxX[l], maxX[r]);
+			maxY[n] = Math.max(maxY[l], maxY[r]);
+		}
+	}
+
+	//This method writes the indices of the triangles whose bounds contain the point into results.
+	//Returns how many were found, which may be more than results could hold.
+	//Not safe to call from several threads at once, the traversal stack is shared.
+	public int query(double x, double y, int[] results) {
+		return query(x, y, results, stack);
+	}
+	
+	//This method is the same query with a traversal stack owned by the caller, at least getStackSize() long,
+	//	so several threads can query the same hierarchy at once.
+	public int query(double x, double y, int[] results, int[] stack) {
+		int found = 0;
+		int top = 0;
+		stack[top++] = 1;
+		while (top > 0) {
+			int n = stack[--top];
+			if (x < minX[n] || x > maxX[n] || y < minY[n] || y > maxY[n]) continue;
+			if (n >= leafCount) {
+				if (found < results.length) results[found] = n - leafCount;
+				++found;
+			} else {
+				stack[top++] = n * 2 + 1;
+				stack[top++] = n * 2;
+			}
+		}
+		return found;
+	}
+	
+	//This method returns how long a traversal stack needs to be for this hierarchy.
+	public int getStackSize() {
+		return stack.length;
+	}
+	
+	//This method returns how many triangles the hierarchy covers.
+	public int getTriangleCount() {
+		return triangleCount;
+	}
+}
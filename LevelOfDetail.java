@@ -0,0 +1,122 @@
+package pbd;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * This class decides how much simulation effort a body gets from where it is relative to the view.
+ * The view here is only what is on screen, it is not the bounds bodies are culled against (see TiledWorld),
+ * 	which would normally be larger so bodies off screen keep being simulated, just less often.
+ * It uses the same AABB test NGon.update uses against its bounds:
+ * 	~Level 0, the body's box intersects the view, it is stepped every frame with every iteration.
+ * 	~Level 1, the box is within a margin of the view, stepped every second frame with half the iterations.
+ * 	~Level 2, anything farther, stepped every fourth frame with a quarter of the iterations.
+ * A body that is not stepped on a frame is paused, it keeps its positions and velocities, and the frames it
+ * 	skipped are owed to it: when it is stepped again the step covers every frame since its last one, so
+ * 	time runs at the same rate for it off screen (see getStepFrames).
+ * 	~That is at most getStepInterval(levels - 1) frames, and the integrator gives the same velocity for
+ * 		one large step as for several small ones, so the step is taken whole.
+ * Coming back towards the view is applied right away and the body is stepped that same frame, catching up
+ * 	on the frames it has skipped so far, and is stepped every frame from then on.
+ * Moving away is only applied after the body has been at the coarser level for a few frames, so a body
+ * 	sitting on the edge of the view does not flip between levels.
+ * The bookkeeping for each body is kept here rather than on the body, so the bodies know nothing of the policy.
+ */
+
+public class LevelOfDetail {
+	static final public int levels = 3;
+	//Frames a body has to qualify for a coarser level before it is moved to it
+	static final private int coarsenDelay = 8;
+
+	private Collision view;
+	private double margin;//how far around the view counts as near
+	//Per body bookkeeping, schedule is called from the one thread stepping the world, while the tile
+	//	workers only read the states of bodies already scheduled that frame
+	private ConcurrentHashMap<Mechanics, State> states = new ConcurrentHashMap<Mechanics, State>();
+
+	//This class is the bookkeeping of one body.
+	static private class State {
+		private int level = 0;
+		private int countdown = 0;//frames left until the body is stepped again
+		private int pending = 0;//frames the body has qualified for a coarser level
+		private int owed = 0;//frames passed since the body was last stepped
+		private int stepFrames = 1;//frames covered by the body's latest step
+	}
+
+	//Constructor keeps a reference to the view bounds, so a view that changes size is followed.
+	public LevelOfDetail(Collision view, double nearMargin) throws IllegalArgumentException {
+		if (nearMargin < 0.0) throw new IllegalArgumentException("The margin around the view needs to be ZERO or a POSITIVE value.");
+		this.view = view;
+		this.margin = nearMargin;
+	}
+
+	//This method returns the level a box qualifies for right now.
+	public int levelOf(Collision box) {
+		if (Collision.intersection(box, view)) return 0;
+		//Same test against the view grown by the margin
+		boolean near = (box.min.x <= view.max.x + margin && box.max.x >= view.min.x - margin) && 
+				(box.min.y <= view.max.y + margin && box.max.y >= view.min.y - margin);
+		return near ? 1 : 2;
+	}
+
+	//This method returns every how many frames a body at the level is stepped.
+	public int getStepInterval(int level) {
+		return 1 << level;
+	}
+
+	//This method returns the solver iterations for a body at the level, never less than one.
+	public int getIterations(int level, int iterations) {
+		return Math.max(1, iterations >> level);
+	}
+
+	//This method updates the body's level and returns whether it should be stepped this frame.
+	//It is meant to be called once per frame for every body, from the thread stepping the world.
+	public boolean schedule(Mechanics body) {
+		State state = states.computeIfAbsent(body, b -> new State());
+		++state.owed;
+		int level = levelOf(body.col);
+		if (level < state.level) {
+			//Restore right away
+			state.level = level;
+			state.countdown = 0;
+			state.pending = 0;
+		} else if (level > state.level) {
+			if (++state.pending >= coarsenDelay) {
+				state.level = Math.min(state.level + 1, levels - 1);
+				state.pending = 0;
+			}
+		} else {
+			state.pending = 0;
+		}
+		if (state.countdown > 0) {
+			--state.countdown;
+			return false;
+		}
+		state.countdown = getStepInterval(state.level) - 1;
+		state.stepFrames = state.owed;
+		state.owed = 0;
+		return true;
+	}
+
+	//This method returns how many frames the body's step covers, the frames since it was last stepped.
+	//Valid once schedule returned true for the body this frame, bodies never scheduled cover one frame.
+	public int getStepFrames(Mechanics body) {
+		State state = states.get(body);
+		return (state == null) ? 1 : state.stepFrames;
+	}
+
+	//This method returns the level the body was last scheduled at, bodies never scheduled are at level 0.
+	public int getLevel(Mechanics body) {
+		State state = states.get(body);
+		return (state == null) ? 0 : state.level;
+	}
+
+	//This method drops the bookkeeping of a body that is no longer simulated.
+	public void forget(Mechanics body) {
+		states.remove(body);
+	}
+
+	//This method drops the bookkeeping of every body, they all start over at level 0.
+	public void reset() {
+		states.clear();
+	}
+}
@@ -49,6 +49,26 @@ public class Mechanics implements Integration{
 				referenceVertices[referenceTriangleIndex + 1], referenceCenter);
 	}
 	
+	//This method is the continuous counterpart of intersectionNarrow, testing the motion of a position
+	//	from its old to its new coordinate against one hull edge of the reference.
+	//Returns the time of impact as a fraction of the motion, or a negative value if there is none.
+	//Only motion entering the reference counts, a position already inside is left for the discrete test.
+	static public double intersectionSwept(Vec2 oldPosition, Vec2 newPosition, Vec2[] referenceVertices, 
+			Vec2 referenceCenter, int referenceEdgeIndex) throws IllegalArgumentException {
+		if (referenceEdgeIndex < 0 || referenceEdgeIndex >= referenceVertices.length) {
+			throw new IllegalArgumentException("No valid edge at index " + referenceEdgeIndex);
+		}
+		Vec2 a = referenceVertices[referenceEdgeIndex];
+		Vec2 b = (referenceEdgeIndex == referenceVertices.length - 1) ? referenceVertices[0] : 
+			referenceVertices[referenceEdgeIndex + 1];
+		//The old position has to be on the opposite side of the edge from the center to be entering
+		double eX = b.x - a.x, eY = b.y - a.y;
+		double sideOld = eX * (oldPosition.y - a.y) - eY * (oldPosition.x - a.x);
+		double sideCenter = eX * (referenceCenter.y - a.y) - eY * (referenceCenter.x - a.x);
+		if (sideOld * sideCenter >= 0.0) return -1.0;
+		return Collision.segmentIntersection(oldPosition, newPosition, a, b);
+	}
+	
 	//This method is a default but may have its default implementation deprecated.
 	public boolean update(double dT, Collision viewBounds) {
 		//If the mass is equal to zero then the object is considered static.
@@ -15,19 +15,36 @@ import javafx.scene.shape.Line;
 
 public class NGon extends Mechanics{
 	
+	//Downward acceleration in pixels per time unit squared, a frame of the application being 2.0 time units.
+	//Chosen so a body falls about as far in its first second as it did with the old integrator.
+	static final public double gravity = 0.03;
+	
+	//Distance kept from an edge when a vertex is clamped at its time of impact
+	static final private double impactOffset = 0.01;
+	
 	//Fields
 	private Vec2 origin;//The center of the NGon.
 	private Vec2[] vertices;//The coordinate data for each vertex.
 	private Line[] lines;//The lines needed to show the polygon.
-	private double radius;//This is the radius from the center (origin) to a vertex -- uniformly spaced vertices from the origin.
-	private double vertexDistance;//This is the distance between any of the uniformly spaced vertices on th hull.
+	private NGonPrototype prototype;//The shared rest shape, radius and vertex distance included.
+	private HullHierarchy hierarchy;//Bounds over the triangles the hull makes with the origin, for the narrow phase.
 	
 	//This constructor builds an NGon, if valid, and uses a constant radius to position the vertices around the origin.
 	public NGon( int vertexCount) throws IllegalArgumentException {
-		 super(5);
 		//magnitude of 5.0 for now
-		if (vertexCount < 3) throw new IllegalArgumentException("Need three or more vertices for a closed loop.");
-		if (vertexCount > 60) throw new IllegalArgumentException("This N-Gon looks suspiciously like a circle with " + vertexCount + " vertices.");
+		this(new NGonPrototype(vertexCount, 50.0), 5, new Vec2(480.0, 270.0));
+	}
+	
+	//This constructor allows for a specific origin and dimension for the object to be initialized at.
+	public NGon(int vertexCount, double mass, Vec2 center, double radius) throws IllegalArgumentException {
+		this(new NGonPrototype(vertexCount, radius), mass, center);
+	}
+	
+	//This constructor builds an instance of a prototype, sharing its rest data, at a specific origin.
+	//Use this one when spawning many bodies of the same shape, only the positions are computed per instance.
+	public NGon(NGonPrototype prototype, double mass, Vec2 center) throws IllegalArgumentException {
+		super(mass);
+		int vertexCount = prototype.getVertexCount();
 		
 		//Triangle{0,1,2} example; This continues for any N-Gon though.
 		//Vert[0] -> end of line[2] and start of line[0]
@@ -42,105 +59,37 @@ public class NGon extends Mechanics{
 		//	~The Exception case is for the zeroth vertex.
 		//		-The start pos is still line[0] but the end pos is at line[n-1]
 		
+		this.prototype = prototype;
 		vertices = new Vec2[vertexCount];
-		origin = new Vec2(480.0, 270.0);
+		origin = new Vec2(center.x, center.y);
 		lines = new Line[vertexCount];
 		//initialize the old vertices and velocities needed for mechanical simulation
 		oldCenter = new Vec2(origin.x, origin.y);
 		oldVertices = new Vec2[vertexCount];
 		velocity = new Vec2[vertexCount];
-
-		//The NGon is simply vertices spaced equally apart around a circle.
-		double rads = 0;
-		double radIncrement = (2.0 * Math.PI) / ((double)vertexCount);
 		
 		for (int i = 0; i < vertexCount; ++i) {
-			//Use an initial position right above the origin.
-			double posX = -50.0 + origin.getX(), posY = -50.0 + origin.getY();
-			if (i == 0)this.radius = Math.sqrt(50 * 50 * 2);
-			if (i == 2) {
-				//Build the distance between vertices
-				Vec2 ab = new Vec2(vertices[1].x - vertices[0].x, vertices[1].y - vertices[0].y);
-				vertexDistance = Math.sqrt(ab.x * ab.x + ab.y * ab.y);
-			}
-			double xPrime = origin.getX() + (Math.cos(rads) * (posX - origin.getX()) - Math.sin(rads) * (posY - origin.getY()));
-			double yPrime = origin.getY() + (Math.sin(rads) * (posX - origin.getX()) + Math.cos(rads) * (posY - origin.getY()));
-			vertices[i] = new Vec2(xPrime, yPrime);
-			oldVertices[i] = new Vec2(xPrime, yPrime);
+			vertices[i] = new Vec2();
 			velocity[i] = new Vec2(0.0, 0.0);
 			lines[i] = new Line();
-			rads += radIncrement;
 		}
-		
-		//build the lines
+		//The rest shape is already computed, it only needs to be moved to the origin
+		prototype.place(origin, vertices);
 		for (int i = 0; i < vertexCount; ++i) {
-			lines[i].setStartX(vertices[i].x);
-			lines[i].setStartY(vertices[i].y);
-			if (i == (vertexCount - 1)) {
-				//exception case where the zeroth index is needed
-				lines[i].setEndX(vertices[0].x);
-				lines[i].setEndY(vertices[0].y);
-			} else {
-				lines[i].setEndX(vertices[i + 1].x);
-				lines[i].setEndY(vertices[i + 1].y);
-			}
-			lines[i].setStyle("-fx-stroke: #880000;");
-			lines[i].setSmooth(false);
-		}
-		
-		//Generate the hitbox so it is ready to be used
-		col.update(oldVertices, vertices, col.min, col.max);
-	}
-	
-	//This constructor allows for a specific origin and dimension for the object to be initialized at.
-	public NGon(int vertexCount, double mass, Vec2 center, double radius) throws IllegalArgumentException {
-		super(mass);
-		if (vertexCount < 3) throw new IllegalArgumentException("Need three or more vertices for a closed loop.");
-		if (vertexCount > 60) throw new IllegalArgumentException("This N-Gon looks suspiciously like a circle with " + vertexCount + " vertices.");
-		if (radius == 0.0) throw new IllegalArgumentException("The radius for vertices around their origin needs to be a real number.");
-		
-		vertices = new Vec2[vertexCount];
-		origin = new Vec2(center.x, center.y);
-		lines = new Line[vertexCount];
-		//initialize the old vertices and velocities needed for mechanical simulation
-		oldCenter = new Vec2(origin.x, origin.y);
-		oldVertices = new Vec2[vertexCount];
-		velocity = new Vec2[vertexCount];
-
-		double rads = 0;
-		double radIncrement = (2.0 * Math.PI) / ((double)vertexCount);
-		
-		for (int i = 0; i < vertexCount; ++i) {
-			//Use an initial position right above the origin.
-			double posX = -radius + origin.getX(), posY = -radius + origin.getY();
-			if (i == 0)this.radius = Math.sqrt(radius * radius * 2);
-			double xPrime = origin.getX() + (Math.cos(rads) * (posX - origin.getX()) - Math.sin(rads) * (posY - origin.getY()));
-			double yPrime = origin.getY() + (Math.sin(rads) * (posX - origin.getX()) + Math.cos(rads) * (posY - origin.getY()));
-			vertices[i] = new Vec2(xPrime, yPrime);
-			oldVertices[i] = new Vec2(xPrime, yPrime);
-			velocity[i] = new Vec2(0.0, 0.0);
-			lines[i] = new Line();
-			rads += radIncrement;
+			oldVertices[i] = new Vec2(vertices[i].x, vertices[i].y);
 		}
 		
 		//build the lines
 		for (int i = 0; i < vertexCount; ++i) {
-			lines[i].setStartX(vertices[i].x);
-			lines[i].setStartY(vertices[i].y);
-			if (i == (vertexCount - 1)) {
-				//exception case where the zeroth index is needed
-				lines[i].setEndX(vertices[0].x);
-				lines[i].setEndY(vertices[0].y);
-			} else {
-				lines[i].setEndX(vertices[i + 1].x);
-				lines[i].setEndY(vertices[i + 1].y);
-			}
-			lines[i].setStyle("-fx-stroke: #880000;");//Antialiasing if possible
+			lines[i].setStyle("-fx-stroke: #880000;");
 			lines[i].setSmooth(false);
 		}
+		setLinePositions();
 		
-		//Generate the hitbox so it is ready to be used
+		//Generate the hitbox and hierarchy so they are ready to be used
 		col.update(oldVertices, vertices, col.min, col.max);
+		hierarchy = new HullHierarchy(vertexCount);
+		hierarchy.refit(vertices, origin);
 	}
 	
 	//This method returns the lines rendered by the application.
@@ -153,14 +102,19 @@ public class NGon extends Mechanics{
 		return this.origin;
 	}
 	
+	//This method returns the shared rest data this NGon was built from.
+	public NGonPrototype getPrototype() {
+		return this.prototype;
+	}
+	
 	//This method returns the distance from the origin to a vertex.
 	public double getRadius() {
-		return this.radius;
+		return prototype.getRadius();
 	}
 	
 	//This method returns the distance between vertices on a shared line.
 	public double getVertexDistance() {
-		return this.vertexDistance;
+		return prototype.getVertexDistance();
 	}
 	
 	//This returns all of the coordinate data.
@@ -168,12 +122,51 @@ public class NGon extends Mechanics{
 		return this.vertices;
 	}
 	
+	//This method recomputes the bounds of the hull's triangle hierarchy from the current positions.
+	public void refitHierarchy() {
+		hierarchy.refit(vertices, origin);
+	}
+	
+	//This method writes the indices of the hull triangles whose bounds contain the position into results,
+	//	these are the only triangles worth testing with Mechanics.intersectionNarrow.
+	//Returns how many were found.
+	public int queryTriangles(Vec2 position, int[] results) {
+		return hierarchy.query(position.x, position.y, results);
+	}
+	
+	//This method returns the hull's triangle hierarchy, for queries that need their own traversal stack.
+	public HullHierarchy getHierarchy() {
+		return hierarchy;
+	}
+	
+	//This returns the largest distance a vertex moved over the last step.
+	public double getMaxDisplacement() {
+		double max = 0.0;
+		for (int i = 0; i < vertices.length; ++i) {
+			double dX = vertices[i].x - oldVertices[i].x, dY = vertices[i].y - oldVertices[i].y;
+			max = Math.max(max, dX * dX + dY * dY);
+		}
+		return Math.sqrt(max);
+	}
+	
+	//This returns the length of the shortest hull edge at the current positions.
+	public double getMinEdgeLength() {
+		double min = Double.MAX_VALUE;
+		for (int i = 0; i < vertices.length; ++i) {
+			Vec2 b = (i == vertices.length - 1) ? vertices[0] : vertices[i + 1];
+			double dX = b.x - vertices[i].x, dY = b.y - vertices[i].y;
+			min = Math.min(min, dX * dX + dY * dY);
+		}
+		return Math.sqrt(min);
+	}
+	
 	//Build the specialized integration method for the body type.
 	//	N-Gon has soft body potential and needs to update each vertex independently
+	//Velocity changes by dT * a, so the result of a frame does not depend on how many steps it is split into.
 	public void integrateAcceleration(double dT, double aX, double aY) {
 		for (Vec2 vel : this.velocity) {
-			vel.x += dT * dT * aX;
-			vel.y += dT * dT * aY;
+			vel.x += dT * aX;
+			vel.y += dT * aY;
 		}
 	}
 	
@@ -196,10 +189,10 @@ public class NGon extends Mechanics{
 				lines[i - 1].setEndY(vertices[i].y);
 			}*/
 		}
-		setLinePositions();
 	}
 	
 	//This updates the lines rendered with their new positions.
+	//Only call this from the JavaFX application thread, once the step is done.
 	public void setLinePositions() {
 		for (int i = 0; i < lines.length; ++i) {
 			lines[i].setStartX(vertices[i].x);
@@ -216,11 +209,38 @@ public class NGon extends Mechanics{
 	
 	//This method modifies the velocity of each vertex by examining the change in position for a frame divided
 	//	by a delta described for that frame.
+	//The velocity points from the old position to the new one, so the next integrateVelocity continues the motion.
 	public void verlet(double dT) {
 		for (int i = 0; i < vertices.length; ++i) {
-			velocity[i].x = (oldVertices[i].x - vertices[i].x) / dT;
-			velocity[i].y = (oldVertices[i].y - vertices[i].y) / dT;
+			velocity[i].x = (vertices[i].x - oldVertices[i].x) / dT;
+			velocity[i].y = (vertices[i].y - oldVertices[i].y) / dT;
+		}
+	}
+	
+	//This method is a continuous collision pass against a reference body.
+	//Any vertex whose motion this frame crosses a hull edge of the reference is moved back along
+	//	that motion to just before the earliest time of impact, so fast vertices cannot tunnel through.
+	//Returns how many vertices were clamped.
+	public int clampToImpact(Vec2[] referenceVertices, Vec2 referenceCenter) {
+		int clamped = 0;
+		for (int i = 0; i < vertices.length; ++i) {
+			Vec2 oldPos = oldVertices[i], newPos = vertices[i];
+			double dX = newPos.x - oldPos.x, dY = newPos.y - oldPos.y;
+			double length = Math.sqrt(dX * dX + dY * dY);
+			if (length == 0.0) continue;
+			double timeOfImpact = 2.0;
+			for (int e = 0; e < referenceVertices.length; ++e) {
+				double t = Mechanics.intersectionSwept(oldPos, newPos, referenceVertices, referenceCenter, e);
+				if (t >= 0.0 && t < timeOfImpact) timeOfImpact = t;
+			}
+			if (timeOfImpact > 1.0) continue;
+			//Stop slightly short of the edge, the discrete contacts take over from there
+			timeOfImpact = Math.max(0.0, timeOfImpact - impactOffset / length);
+			newPos.x = oldPos.x + dX * timeOfImpact;
+			newPos.y = oldPos.y + dY * timeOfImpact;
+			++clamped;
 		}
+		return clamped;
 	}
 	
 	//Ensure the appropriate update method is invoked, rather than the default Mechanics method.
@@ -228,12 +248,13 @@ public class NGon extends Mechanics{
 	final public boolean update(double dT, Collision viewBounds) {
 		
 		if (mass > 0) {
-			integrateAcceleration(dT, 0.0, 0.98);//Gravity constant included in here
+			integrateAcceleration(dT, 0.0, gravity);
 			integrateVelocity(dT);
 			
 			col.update(oldVertices, vertices, col.min, col.max);
 			origin.x = (col.min.x + col.max.x) * 0.5;
 			origin.y = (col.min.y + col.max.y) * 0.5; 
+			hierarchy.refit(vertices, origin);
 			if (!Collision.intersection(col, viewBounds)) {
 				return false;
 			}
@@ -0,0 +1,114 @@
+package pbd;
+
+/*
+ * This class holds everything about an N-Gon that does not change while it is simulated, so it can be
+ * 	computed once and shared by any number of NGon instances of the same shape.
+ * That is the rest position of each vertex relative to the origin, the rest lengths, the distance
+ * 	constraint topology (a spoke from every vertex to the origin and an edge to the next vertex), and the
+ * 	unit normal of each edge at rest.
+ * Instances are only ever translated from the rest pose when placed, so a body that is not simulated
+ * 	(e.g. the static ground) can use the rest normals as its current ones.
+ * Instances built from a prototype only copy the rest offsets and translate them, no sin/cos per vertex.
+ * The arrays are never handed out, so the prototype stays immutable once built.
+ */
+
+public class NGonPrototype {
+	private int vertexCount;
+	private double[] restX, restY;//rest offsets from the origin for each vertex
+	private double radius;//distance from the origin to a vertex
+	private double vertexDistance;//distance between neighbouring vertices
+	//Distance constraint topology, index vertexCount stands for the origin
+	private int[] constraintA, constraintB;
+	private double[] restLength;
+	//Unit normal of the edge from vertex i to i + 1 (wrapping), same orientation as ContactBatch uses
+	private double[] normalX, normalY;
+
+	//Constructor places the vertices uniformly around a circle, the first one at {-halfExtent, -halfExtent}
+	//	from the origin, just as the NGon constructors always have.
+	public NGonPrototype(int vertexCount, double halfExtent) throws IllegalArgumentException {
+		if (vertexCount < 3) throw new IllegalArgumentException("Need three or more vertices for a closed loop.");
+		if (vertexCount > 60) throw new IllegalArgumentException("This N-Gon looks suspiciously like a circle with " + vertexCount + " vertices.");
+		if (halfExtent == 0.0) throw new IllegalArgumentException("The radius for vertices around their origin needs to be a real number.");
+		this.vertexCount = vertexCount;
+		restX = new double[vertexCount];
+		restY = new double[vertexCount];
+
+		double rads = 0;
+		double radIncrement = (2.0 * Math.PI) / ((double)vertexCount);
+		for (int i = 0; i < vertexCount; ++i) {
+			//Rotate the initial position right above the origin
+			restX[i] = Math.cos(rads) * -halfExtent - Math.sin(rads) * -halfExtent;
+			restY[i] = Math.sin(rads) * -halfExtent + Math.cos(rads) * -halfExtent;
+			rads += radIncrement;
+		}
+		radius = Math.sqrt(halfExtent * halfExtent * 2);
+		double abX = restX[1] - restX[0], abY = restY[1] - restY[0];
+		vertexDistance = Math.sqrt(abX * abX + abY * abY);
+
+		//Spoke then edge for each vertex, the order the solver has always added them in
+		constraintA = new int[vertexCount * 2];
+		constraintB = new int[vertexCount * 2];
+		restLength = new double[vertexCount * 2];
+		for (int i = 0; i < vertexCount; ++i) {
+			constraintA[i * 2] = i;
+			constraintB[i * 2] = vertexCount;
+			restLength[i * 2] = radius;
+			constraintA[i * 2 + 1] = i;
+			constraintB[i * 2 + 1] = (i == vertexCount - 1) ? 0 : i + 1;
+			restLength[i * 2 + 1] = vertexDistance;
+		}
+
+		normalX = new double[vertexCount];
+		normalY = new double[vertexCount];
+		for (int i = 0; i < vertexCount; ++i) {
+			int next = (i == vertexCount - 1) ? 0 : i + 1;
+			double nx = -(restY[next] - restY[i]);
+			double ny = restX[next] - restX[i];
+			double mag = 1.0 / Math.sqrt(nx * nx + ny * ny);
+			normalX[i] = nx * mag;
+			normalY[i] = ny * mag;
+		}
+	}
+
+	//This method writes the rest positions of the vertices, translated to the center, into vertices.
+	public void place(Vec2 center, Vec2[] vertices) {
+		for (int i = 0; i < vertexCount; ++i) {
+			vertices[i].x = center.x + restX[i];
+			vertices[i].y = center.y + restY[i];
+		}
+	}
+
+	//This method adds the distance constraints of an instance to a batch.
+	//The instance's vertices are expected at [vertexBase, vertexBase + vertexCount) of the particle table
+	//	and its origin right after them.
+	public void addConstraints(DistanceBatch batch, int vertexBase) {
+		for (int i = 0; i < constraintA.length; ++i) {
+			batch.add(vertexBase + constraintA[i], vertexBase + constraintB[i], restLength[i]);
+		}
+	}
+
+	//This method returns how many vertices an instance has.
+	public int getVertexCount() {
+		return vertexCount;
+	}
+
+	//This method returns the distance from the origin to a vertex.
+	public double getRadius() {
+		return radius;
+	}
+
+	//This method returns the distance between vertices on a shared line.
+	public double getVertexDistance() {
+		return vertexDistance;
+	}
+
+	//This method returns the x component of the rest normal of the edge from vertex edge to the next one.
+	public double getNormalX(int edge) {
+		return normalX[edge];
+	}
+
+	//This method returns the y component of the rest normal of the edge from vertex edge to the next one.
+	public double getNormalY(int edge) {
+		return normalY[edge];
+	}
+}
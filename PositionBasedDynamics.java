@@ -1,6 +1,7 @@
 package pbd;
 
-import java.util.ArrayList;
+import java.io.IOException;
+import java.nio.file.Paths;
 
 import javafx.animation.*;
 import javafx.application.Application;
@@ -52,6 +53,10 @@ import javafx.util.Duration;
  * A FPS counter runs beside these border layer while the simulation is running to try to show how frequent
  * 	the simulation is being updated -- but for consistency the delta time used for the simulation is constant.
  * The Text Area at the bottom gets filled with success or error messages in response to using the GUI buttons.
+ * Optional features are turned on with system properties:
+ * 	~-Dpbd.sharedState=<file> publishes the particle positions to a memory mapped file every frame.
+ * 	~-Dpbd.telemetry=<file> logs energy, momentum, penetration and residual per frame (see TelemetryLog).
+ * 	~-Dpbd.hierarchical=true solves coarse levels of the N-Gon's distance constraints before the fine ones.
  */
 
 public class PositionBasedDynamics extends Application{
@@ -79,8 +84,26 @@ public class PositionBasedDynamics extends Application{
 	private NGon testGround;
 	private long timePrevious, timeCurrent, frameCounter, frameRateSum;
 	private int iterations = 10;
-	//The list of constraints to solve
-	ArrayList<Constraint> constraints = new ArrayList<Constraint>();
+	//Simulated time per frame, and the controller choosing how many substeps it is split into
+	static final private double frameStep = 2.0;
+	private TimestepController timestep = new TimestepController(0.25, frameStep, 0.2);
+	//Optional memory mapped copy of the particle positions, enabled with -Dpbd.sharedState=<file>
+	static final private int sharedCapacity = 1024;
+	static final private int sharedBodies = 16;
+	private SharedParticleState sharedState = null;
+	//Optional per frame telemetry log, enabled with -Dpbd.telemetry=<file>
+	private TelemetryLog telemetryLog = null;
+	private StepTelemetry telemetry = new StepTelemetry();
+	private long simFrame = 0;
+	//The constraints to solve, batched by type and referencing positions by index into the particle table
+	private DistanceBatch distanceConstraints = new DistanceBatch();
+	private ContactBatch contactConstraints = new ContactBatch();
+	private Vec2[] particles = new Vec2[0];
+	private int[] candidates = new int[0];//reference triangles found by the hierarchy for one vertex
+	//Optional multi-resolution solve of the distance constraints, enabled with -Dpbd.hierarchical=true
+	private boolean hierarchicalSolve = Boolean.getBoolean("pbd.hierarchical");
+	private HierarchicalSolver hierarchy = null;
+	private NGon hierarchyBody = null;//the body the hierarchy was built for
 	
 	
 	protected void PositionBasedDynamics() {
@@ -163,6 +186,27 @@ public class PositionBasedDynamics extends Application{
 		
 		testGon = null;
 		
+		//Map the shared particle state if a file was asked for
+		String sharedPath = System.getProperty("pbd.sharedState");
+		if (sharedPath != null) {
+			try {
+				sharedState = new SharedParticleState(Paths.get(sharedPath), sharedCapacity, sharedBodies);
+				messageBoard.setText("Sharing particle state through " + sharedPath);
+			} catch(IOException e) {
+				messageBoard.setText("Could not map the shared state file: " + e.getMessage());
+			}
+		}
+		
+		//Open the telemetry log if a file was asked for
+		String telemetryPath = System.getProperty("pbd.telemetry");
+		if (telemetryPath != null) {
+			try {
+				telemetryLog = new TelemetryLog(Paths.get(telemetryPath));
+			} catch(IOException e) {
+				messageBoard.setText("Could not open the telemetry file: " + e.getMessage());
+			}
+		}
+		
 		addNGon.setOnAction(event -> addNGon());
 		startPauseSimulation.setOnAction(event -> runSimulation());
 		setIteration.setOnAction(event -> setIterations());
@@ -174,6 +218,19 @@ public class PositionBasedDynamics extends Application{
 		primaryStage.show();
 	}
 	
+	//Release the shared state and telemetry files, if any, when the application closes.
+	@Override
+	public void stop() throws Exception {
+		if (sharedState != null) {
+			sharedState.close();
+			sharedState = null;
+		}
+		if (telemetryLog != null) {
+			telemetryLog.close();
+			telemetryLog = null;
+		}
+	}
+	
 	public static void main(String[] args) {
 		//Creates an instance of PositionBasedDyanmics and runs the start method
 		launch(args);
@@ -192,6 +249,7 @@ public class PositionBasedDynamics extends Application{
 				testGon = null;
 			}
 			testGon = temp;
+			timestep.reset();
 			for (Line l : testGon.getLines()) {
 				sandbox.getChildren().add(l);
 			}
@@ -207,14 +265,48 @@ public class PositionBasedDynamics extends Application{
 	//This is where constraints are solved multiple times in one frame,
 		//	allowing for violations created from one solution to be correct
 		//	to approach a global solution to the set of constraints.
+	//Each batch is solved by its own loop so there is no virtual dispatch per constraint.
+	//Note this is not the order of the old single constraint list, which mixed distance and contact constraints
+	//	in the order they were added and walked it backwards. Now every distance constraint is solved first and
+	//	the contacts last, so each iteration ends with non-penetration enforced rather than a shape constraint.
 	private void iterativeSolver() {
+		if (hierarchy != null) hierarchy.solve(particles, iterations);
 		for (int i = 0; i < iterations; ++i) {
-			for (int j = constraints.size() - 1; j >= 0; --j) {
-				constraints.get(j).solve();
-			}
+			distanceConstraints.solve(particles);
+			contactConstraints.solve(particles);
+		}
+		if (telemetryLog != null) telemetry.addSolve(distanceConstraints, contactConstraints, particles);
+		distanceConstraints.clear();
+		contactConstraints.clear();
+	}
+	
+	//This method fills the particle table the constraint batches index into.
+	//Layout: the dynamic N-Gon's vertices, then its origin, then the ground's vertices.
+	//The table is only reallocated when the number of positions changes.
+	private void buildParticleTable() {
+		Vec2[] gonVerts = testGon.getVertices();
+		Vec2[] groundVerts = testGround.getVertices();
+		int count = gonVerts.length + 1 + groundVerts.length;
+		if (particles.length != count) {
+			particles = new Vec2[count];
+		}
+		System.arraycopy(gonVerts, 0, particles, 0, gonVerts.length);
+		particles[gonVerts.length] = testGon.getOrigin();
+		System.arraycopy(groundVerts, 0, particles, gonVerts.length + 1, groundVerts.length);
+	}
+	
+	//This method builds the coarse levels for the dynamic N-Gon's distance constraints from its rest shape.
+	//Only the N-Gon's vertices and origin have constraints, the ground's rest positions are never used.
+	private void buildHierarchy() {
+		Vec2[] rest = new Vec2[particles.length];
+		int gonCount = testGon.getVertices().length;
+		for (int i = 0; i < rest.length; ++i) {
+			rest[i] = new Vec2(particles[i].x, particles[i].y);
 		}
-		testGon.setLinePositions();
-		constraints.clear();
+		testGon.getPrototype().place(new Vec2(0.0, 0.0), rest);
+		rest[gonCount] = new Vec2(0.0, 0.0);
+		hierarchy = new HierarchicalSolver(distanceConstraints, rest, gonCount + 1);
+		hierarchyBody = testGon;
 	}
 	
 	//This method removes old lines from the Panel,
@@ -242,6 +334,17 @@ public class PositionBasedDynamics extends Application{
 		}
 	}
 	
+	//This method copies the positions of the ground and then the dynamic N-Gon to the shared state
+	//	as one frame, body 0 of the file's body table is the ground and body 1 the N-Gon.
+	private void publishState() {
+		sharedState.beginFrame();
+		sharedState.write(testGround.getVertices());
+		if (testGon != null) {
+			sharedState.write(testGon.getVertices());
+		}
+		sharedState.endFrame();
+	}
+	
 	//This method tries to assert a new iteration count based on
 	// user information from the GUI.
 	private void setIterations() {
@@ -260,6 +363,7 @@ public class PositionBasedDynamics extends Application{
 	}
 	
 	//This is where the simulation update is invoked through the AnimationTimer.
+	//The frame is split into as many substeps as the timestep controller asks for.
 	private void updateSim(long curTime) {
 		
 		//Update the Maximum Bound of the sandbox Node
@@ -268,40 +372,22 @@ public class PositionBasedDynamics extends Application{
 		
 		//Update N-Gon
 		if (testGon != null) {
-			if (!testGon.update(2.0, sandboxBounds)) {
-				//Remove the NGon
-				removeNGon(testGon);
-				testGon = null;
-				//Stop the simulation
-				runSimulation();
-				messageBoard.setText("The N-Gon has gone out of view and is being culled");
-			} else {
+			int substeps = timestep.getSubsteps(frameStep);
+			double dT = frameStep / substeps;
+			telemetry.reset();
+			++simFrame;
+			for (int s = 0; s < substeps && testGon != null; ++s) {
+				stepSim(dT);
+			}
+			if (testGon != null) {
+				//Lines are only moved once per frame, after all of the substeps
+				testGon.setLinePositions();
 				framerate.setText(Long.toString(frameRateSum / frameCounter));
-				//Test for collision with the ground NGon
-				if (testGon.intersectionBroad((Mechanics) testGround)) {
-					for (int v = 0; v < testGon.getVertices().length; v++) {
-						constraints.add(new DistanceConstraint(testGon.getVertices()[v], testGon.getOrigin(), testGon.getRadius()));
-						if (v == testGon.getVertices().length - 1) {
-							constraints.add((Constraint) new DistanceConstraint(testGon.getVertices()[v], testGon.getVertices()[0], testGon.getVertexDistance()));
-						} else {
-							constraints.add((Constraint) new DistanceConstraint(testGon.getVertices()[v], testGon.getVertices()[v + 1], testGon.getVertexDistance()));
-						}
-						for (int i = 0; i < testGround.getVertices().length; ++i) {
-							if (Mechanics.intersectionNarrow(testGon.getVertices()[v], 
-									testGround.getVertices(), testGround.getOrigin(), i)) {
-								if (i == testGround.getVertices().length - 1) {
-									constraints.add(new Constraint(testGon.getVertices()[v], testGround.getVertices()[i], testGround.getVertices()[0]));//.solve();
-								} else {
-									constraints.add(new Constraint(testGon.getVertices()[v], testGround.getVertices()[i], testGround.getVertices()[i+1]));//.solve();
-								}
-							}
-						}
-					}
-					iterativeSolver();
-				} else {
-					
+				if (sharedState != null) publishState();
+				if (telemetryLog != null) {
+					telemetry.addBody(testGon, dT);
+					telemetryLog.offer(simFrame, telemetry);
 				}
-				testGon.verlet(2.0);
 			}
 		} else {
 			//Stop the simulation, there is nothing for it to do
@@ -309,4 +395,51 @@ public class PositionBasedDynamics extends Application{
 			messageBoard.setText("There is nothing to run in the simulation");
 		}
 	}
+	
+	//This method advances the dynamic N-Gon by one step of dT.
+	private void stepSim(double dT) {
+		if (telemetryLog != null) telemetry.beginStep();
+		if (!testGon.update(dT, sandboxBounds)) {
+			//Remove the NGon
+			removeNGon(testGon);
+			testGon = null;
+			//Stop the simulation
+			runSimulation();
+			messageBoard.setText("The N-Gon has gone out of view and is being culled");
+			return;
+		}
+		//Test for collision with the ground NGon
+		if (testGon.intersectionBroad((Mechanics) testGround)) {
+			//Continuous pass first so no vertex has tunneled past the ground this frame
+			testGon.clampToImpact(testGround.getVertices(), testGround.getOrigin());
+			buildParticleTable();
+			int gonCount = testGon.getVertices().length;
+			int groundBase = gonCount + 1;
+			int groundCount = testGround.getVertices().length;
+			if (candidates.length < groundCount) candidates = new int[groundCount];
+			//The ground is never moved from where it was placed, so its rest normals are its current ones
+			NGonPrototype groundShape = testGround.getPrototype();
+			//The shape's distance constraints come from its prototype, the origin sits right after the vertices
+			testGon.getPrototype().addConstraints(distanceConstraints, 0);
+			if (hierarchicalSolve && hierarchyBody != testGon) buildHierarchy();
+			for (int v = 0; v < gonCount; v++) {
+				//Only the ground triangles whose bounds hold the vertex need the narrow test
+				int candidateCount = Math.min(candidates.length, 
+						testGround.queryTriangles(testGon.getVertices()[v], candidates));
+				for (int c = 0; c < candidateCount; ++c) {
+					int i = candidates[c];
+					if (Mechanics.intersectionNarrow(testGon.getVertices()[v], 
+							testGround.getVertices(), testGround.getOrigin(), i)) {
+						int next = (i == groundCount - 1) ? groundBase : groundBase + i + 1;
+						contactConstraints.addFixedNormal(v, groundBase + i, next, 
+								groundShape.getNormalX(i), groundShape.getNormalY(i));
+					}
+				}
+			}
+			iterativeSolver();
+		}
+		//Let the controller see how far the vertices moved with this step size
+		timestep.record(testGon.getMaxDisplacement(), testGon.getMinEdgeLength(), dT);
+		testGon.verlet(dT);
+	}
 }
@@ -0,0 +1,235 @@
+package pbd;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * This class keeps a copy of the simulation's particle positions in a memory mapped file so other
+ * 	processes (a native visualizer, analysis tools, etc.) can read the live state without any serialization.
+ * The file is a small header, a body table and then the positions as little endian doubles, {x0, y0, x1, y1, ...}.
+ * 	~[0]  int    magic number, "PBDS"
+ * 	~[4]  int    layout version
+ * 	~[8]  int    capacity, the most particles the file can hold
+ * 	~[12] int    count, the particles written in the last frame
+ * 	~[16] long   sequence, odd while a frame is being written and even once it is complete
+ * 	~[24] long   frame, how many frames have been published
+ * 	~[32] int    max bodies, the entries the body table has room for
+ * 	~[36] int    body count, the bodies written in the last frame
+ * 	~[40] int[2] body table, {first particle, particle count} for each body in the order they were written
+ * 	~[40 + max bodies * 8] double positions
+ * A reader copies the sequence, then the data, then the sequence again; if both are the same even number
+ * 	the copy was not torn by the writer.
+ * 	~A reader only retries for a limited time, if no consistent copy could be made by then the writer is
+ * 		taken to have stalled (or stopped mid frame) and writerStalled is returned instead of waiting forever.
+ * 	~A new writer taking over the file after one stopped mid frame publishes an empty frame, so readers recover.
+ * Only one writer may have a file open. Readers use openReader, which maps the file read only and never
+ * 	touches the header, so they cannot disturb the writer.
+ */
+
+public class SharedParticleState implements AutoCloseable {
+	//Header layout
+	static final public int magic = 0x50424453;
+	static final public int version = 2;
+	static final private int capacityOffset = 8;
+	static final private int countOffset = 12;
+	static final private int sequenceOffset = 16;
+	static final private int frameOffset = 24;
+	static final private int maxBodiesOffset = 32;
+	static final private int bodyCountOffset = 36;
+	static final private int bodyTableOffset = 40;
+	//Returned by read when no consistent copy could be made before the timeout
+	static final public int writerStalled = -2;
+	//How long read retries by default, in nanoseconds
+	static final public long defaultReadTimeout = 100000000L;
+	//Lets the sequence be written with release/acquire ordering directly into the mapped file
+	static final private VarHandle longView = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+	private FileChannel channel;
+	private MappedByteBuffer buffer;
+	private boolean readOnly;
+	private int capacity;
+	private int maxBodies;
+	private int positionsOffset;
+	private int count;//particles written so far in the frame being published
+	private int bodyCount;//bodies written so far in the frame being published
+	private long sequence;
+	private int lastCount;//particle count of the last read, for the single argument read
+
+	//Constructor opens the file as the writer, creating it if needed, with room for the given amount of
+	//	particles and bodies.
+	//If the file already has this layout the writer takes over its sequence and frame counters, so readers
+	//	that are already attached keep seeing them increase.
+	public SharedParticleState(Path file, int capacity, int maxBodies) throws IOException, IllegalArgumentException {
+		if (capacity <= 0) throw new IllegalArgumentException("The shared state needs room for at least one particle.");
+		if (maxBodies <= 0) throw new IllegalArgumentException("The shared state needs room for at least one body.");
+		this.capacity = capacity;
+		this.maxBodies = maxBodies;
+		readOnly = false;
+		positionsOffset = bodyTableOffset + maxBodies * 8;
+		channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		long existing = channel.size();
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, positionsOffset + (long)capacity * 16L);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		boolean sameLayout = existing >= positionsOffset && buffer.getInt(0) == magic && buffer.getInt(4) == version &&
+				buffer.getInt(capacityOffset) == capacity && buffer.getInt(maxBodiesOffset) == maxBodies;
+		if (sameLayout) {
+			sequence = (long)longView.getAcquire(buffer, sequenceOffset);
+			if ((sequence & 1L) != 0L) {
+				//A previous writer stopped mid frame, publish an empty frame so readers do not spin forever
+				buffer.putInt(countOffset, 0);
+				buffer.putInt(bodyCountOffset, 0);
+				longView.setRelease(buffer, sequenceOffset, ++sequence);
+			}
+		} else {
+			sequence = 0;
+			buffer.putInt(0, magic);
+			buffer.putInt(4, version);
+			buffer.putInt(capacityOffset, capacity);
+			buffer.putInt(countOffset, 0);
+			buffer.putLong(frameOffset, 0L);
+			buffer.putInt(maxBodiesOffset, maxBodies);
+			buffer.putInt(bodyCountOffset, 0);
+			longView.setRelease(buffer, sequenceOffset, sequence);
+		}
+	}
+
+	//Constructor for openReader, maps an existing file read only and takes the layout from its header.
+	private SharedParticleState(Path file) throws IOException {
+		readOnly = true;
+		channel = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			if (size < bodyTableOffset) throw new IOException("Too small to be a shared state file: " + file);
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			if (buffer.getInt(0) != magic) throw new IOException("Not a shared state file: " + file);
+			if (buffer.getInt(4) != version) throw new IOException("Unsupported shared state version " + buffer.getInt(4) + " in " + file);
+			capacity = buffer.getInt(capacityOffset);
+			maxBodies = buffer.getInt(maxBodiesOffset);
+			positionsOffset = bodyTableOffset + maxBodies * 8;
+			if (capacity <= 0 || maxBodies <= 0 || size < positionsOffset + (long)capacity * 16L) {
+				throw new IOException("The header of " + file + " does not match its size.");
+			}
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	//This method opens an existing file for reading only, the header is checked but never written.
+	static public SharedParticleState openReader(Path file) throws IOException {
+		return new SharedParticleState(file);
+	}
+
+	//This method marks the start of a frame, readers will see an odd sequence until endFrame is called.
+	public void beginFrame() throws IllegalStateException {
+		if (readOnly) throw new IllegalStateException("This shared state was opened read only.");
+		count = 0;
+		bodyCount = 0;
+		longView.setRelease(buffer, sequenceOffset, ++sequence);
+		VarHandle.storeStoreFence();
+	}
+
+	//This method appends one body's positions to the frame being written and returns the index of its first one.
+	public int write(Vec2[] positions) throws IllegalStateException {
+		if (readOnly) throw new IllegalStateException("This shared state was opened read only.");
+		if ((sequence & 1L) == 0L) throw new IllegalStateException("beginFrame needs to be called before writing positions.");
+		if (count + positions.length > capacity) throw new IllegalStateException("The shared state only holds " + capacity + " particles.");
+		if (bodyCount == maxBodies) throw new IllegalStateException("The shared state only holds " + maxBodies + " bodies.");
+		int first = count;
+		int offset = positionsOffset + count * 16;
+		for (Vec2 p : positions) {
+			buffer.putDouble(offset, p.x);
+			buffer.putDouble(offset + 8, p.y);
+			offset += 16;
+		}
+		buffer.putInt(bodyTableOffset + bodyCount * 8, first);
+		buffer.putInt(bodyTableOffset + bodyCount * 8 + 4, positions.length);
+		++bodyCount;
+		count += positions.length;
+		return first;
+	}
+
+	//This method completes the frame, publishing the counts and making the sequence even again.
+	public void endFrame() throws IllegalStateException {
+		if (readOnly) throw new IllegalStateException("This shared state was opened read only.");
+		buffer.putInt(countOffset, count);
+		buffer.putInt(bodyCountOffset, bodyCount);
+		buffer.putLong(frameOffset, buffer.getLong(frameOffset) + 1L);
+		longView.setRelease(buffer, sequenceOffset, ++sequence);
+	}
+
+	//This method reads back a consistent copy of the positions into {x0, y0, x1, y1, ...} form.
+	//Returns the particle count copied, -1 if the destination is too small, or writerStalled.
+	public int read(double[] destination) {
+		int bodies = read(destination, null);
+		return (bodies < 0) ? bodies : lastCount;
+	}
+
+	//This method reads back a consistent copy of the positions, and of the body table as
+	//	{first particle, particle count} pairs into bodyRanges when it is not null.
+	//Returns the body count copied, -1 if either destination is too small, or writerStalled.
+	public int read(double[] destination, int[] bodyRanges) {
+		return read(destination, bodyRanges, defaultReadTimeout);
+	}
+
+	//This method is read with a specific timeout in nanoseconds, after which writerStalled is returned.
+	//Spins while a frame is being written.
+	public int read(double[] destination, int[] bodyRanges, long timeoutNanos) {
+		long deadline = System.nanoTime() + timeoutNanos;
+		for (long attempt = 0; ; ++attempt) {
+			//Only look at the clock every so often, a healthy writer finishes a frame quickly
+			if ((attempt & 0xFF) == 0xFF && System.nanoTime() - deadline > 0) return writerStalled;
+			long before = (long)longView.getAcquire(buffer, sequenceOffset);
+			if ((before & 1L) != 0L) {
+				Thread.onSpinWait();
+				continue;
+			}
+			int n = buffer.getInt(countOffset);
+			int bodies = buffer.getInt(bodyCountOffset);
+			if (n < 0 || n > capacity || bodies < 0 || bodies > maxBodies) continue;//torn header, try again
+			if (destination.length < n * 2 || (bodyRanges != null && bodyRanges.length < bodies * 2)) return -1;
+			ByteBuffer view = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+			view.position(positionsOffset);
+			view.asDoubleBuffer().get(destination, 0, n * 2);
+			if (bodyRanges != null) {
+				view.position(bodyTableOffset);
+				view.asIntBuffer().get(bodyRanges, 0, bodies * 2);
+			}
+			VarHandle.loadLoadFence();
+			if ((long)longView.getAcquire(buffer, sequenceOffset) == before) {
+				lastCount = n;
+				return bodies;
+			}
+		}
+	}
+
+	//This method returns how many frames have been published.
+	public long getFrame() {
+		return buffer.getLong(frameOffset);
+	}
+
+	//This method returns how many particles the mapped file has room for.
+	public int getCapacity() {
+		return capacity;
+	}
+
+	//This method returns how many bodies the body table has room for.
+	public int getMaxBodies() {
+		return maxBodies;
+	}
+
+	//This method releases the file, the mapping itself is released once the buffer is collected.
+	@Override
+	public void close() throws IOException {
+		if (!readOnly) buffer.force();
+		channel.close();
+	}
+}
@@ -0,0 +1,65 @@
+package pbd;
+
+/*
+ * This class gathers the per frame aggregates used to watch the health of a long simulation run:
+ * 	~Kinetic energy and linear momentum, from each vertex's change in position over the step, with the
+ * 		body's mass split evenly between its vertices.
+ * 	~Max penetration, the deepest contact violation left after the solve.
+ * 	~Constraint residual, the root of the summed squared distance constraint errors left after the solve.
+ * Every aggregate describes the last step of the frame, so with substeps none of them is summed across the
+ * 	substeps: the solve aggregates start over with beginStep and the body ones are added after the last step.
+ * Reset it at the start of a frame, call beginStep at the start of each substep, feed it while stepping,
+ * 	then hand it to a TelemetryLog.
+ */
+
+public class StepTelemetry {
+	public double kineticEnergy;
+	public double momentumX, momentumY;
+	public double maxPenetration;
+	private double residualSquared;
+
+	//Constructor starts with every aggregate at zero.
+	public StepTelemetry() {
+		reset();
+	}
+
+	//This method zeroes the aggregates for a new frame.
+	public void reset() {
+		kineticEnergy = 0.0;
+		momentumX = 0.0;
+		momentumY = 0.0;
+		beginStep();
+	}
+
+	//This method zeroes the solve aggregates for a new step, only the last step's solves are kept.
+	public void beginStep() {
+		maxPenetration = 0.0;
+		residualSquared = 0.0;
+	}
+
+	//This method adds a body's energy and momentum for a step of dT, static bodies add nothing.
+	public void addBody(NGon body, double dT) {
+		if (body.mass <= 0 || dT <= 0.0) return;
+		Vec2[] vertices = body.getVertices();
+		double vertexMass = body.mass / vertices.length;
+		for (int i = 0; i < vertices.length; ++i) {
+			double vX = (vertices[i].x - body.oldVertices[i].x) / dT;
+			double vY = (vertices[i].y - body.oldVertices[i].y) / dT;
+			kineticEnergy += 0.5 * vertexMass * (vX * vX + vY * vY);
+			momentumX += vertexMass * vX;
+			momentumY += vertexMass * vY;
+		}
+	}
+
+	//This method records the state of a solved set of batches, before they are cleared.
+	//Several solves within one step (e.g. one per tile) add up.
+	public void addSolve(DistanceBatch distances, ContactBatch contacts, Vec2[] particles) {
+		residualSquared += distances.residual(particles);
+		maxPenetration = Math.max(maxPenetration, contacts.maxViolation(particles));
+	}
+
+	//This method returns the constraint residual.
+	public double getResidual() {
+		return Math.sqrt(residualSquared);
+	}
+}
@@ -0,0 +1,200 @@
+package pbd;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * This class writes StepTelemetry frames to a compact columnar binary file from a background thread.
+ * The simulation only offers a frame to a bounded queue, if the writer has fallen behind the frame is
+ * 	dropped (and counted) rather than ever blocking the simulation thread.
+ * File layout, little endian:
+ * 	~Header: int magic "PBDT", int version, int column count.
+ * 	~Blocks of up to blockFrames frames: int frame count n, then each column as n values in a row,
+ * 		frame numbers as longs followed by the double columns in the order of the columns array.
+ * Dropped frames show up as gaps in the frame numbers.
+ * Running this class, or calling summarize, reads a file back and summarizes each column.
+ */
+
+public class TelemetryLog implements AutoCloseable {
+	static final public int magic = 0x50424454;
+	static final public int version = 1;
+	static final public String[] columns = {"kineticEnergy", "momentumX", "momentumY", "maxPenetration", "residual"};
+	static final private int blockFrames = 256;
+	static final private int queueCapacity = 1024;
+
+	private FileChannel channel;
+	private ArrayBlockingQueue<double[]> queue = new ArrayBlockingQueue<double[]>(queueCapacity);
+	private AtomicLong dropped = new AtomicLong();
+	private volatile boolean closing = false;
+	private Thread writer;
+	//Writer thread state, the block being filled
+	private long[] blockFrame = new long[blockFrames];
+	private double[][] blockColumns = new double[columns.length][blockFrames];
+	private int blockCount = 0;
+	private ByteBuffer buffer = ByteBuffer.allocateDirect(4 + blockFrames * 8 * (columns.length + 1)).order(ByteOrder.LITTLE_ENDIAN);
+	private IOException failure = null;
+
+	//Constructor creates (or truncates) the file, writes the header and starts the writer thread.
+	public TelemetryLog(Path file) throws IOException {
+		channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(magic).putInt(version).putInt(columns.length).flip();
+		while (header.hasRemaining()) channel.write(header);
+		writer = new Thread(this::drain, "pbd-telemetry");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	//This method hands a frame to the writer, returns false if it was dropped because the queue is full.
+	public boolean offer(long frame, StepTelemetry telemetry) {
+		double[] record = {frame, telemetry.kineticEnergy, telemetry.momentumX, telemetry.momentumY,
+				telemetry.maxPenetration, telemetry.getResidual()};
+		if (closing || !queue.offer(record)) {
+			dropped.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	//This method returns how many frames have been dropped so far.
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	//This method writes whatever is still queued, stops the writer and closes the file.
+	@Override
+	public void close() throws IOException {
+		closing = true;
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		channel.close();
+		if (failure != null) throw failure;
+	}
+
+	//Writer thread loop, moves queued frames into the block and writes full blocks.
+	private void drain() {
+		try {
+			while (true) {
+				double[] record = queue.poll(100, TimeUnit.MILLISECONDS);
+				if (record == null) {
+					if (closing && queue.isEmpty()) break;
+					continue;
+				}
+				blockFrame[blockCount] = (long)record[0];
+				for (int c = 0; c < columns.length; ++c) {
+					blockColumns[c][blockCount] = record[c + 1];
+				}
+				if (++blockCount == blockFrames) writeBlock();
+			}
+			writeBlock();
+		} catch (IOException e) {
+			failure = e;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	//This method writes the frames gathered so far as one block.
+	private void writeBlock() throws IOException {
+		if (blockCount == 0) return;
+		buffer.clear();
+		buffer.putInt(blockCount);
+		for (int i = 0; i < blockCount; ++i) buffer.putLong(blockFrame[i]);
+		for (int c = 0; c < columns.length; ++c) {
+			for (int i = 0; i < blockCount; ++i) buffer.putDouble(blockColumns[c][i]);
+		}
+		buffer.flip();
+		while (buffer.hasRemaining()) channel.write(buffer);
+		blockCount = 0;
+	}
+
+	//This method reads a telemetry file and returns a short summary of the run: the frames, the gaps
+	//	left by dropped frames, and the min, mean and max of every column.
+	//The file is read one block at a time, so its size does not matter.
+	static public String summarize(Path file) throws IOException {
+		try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+			ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+			if (!readFully(in, header) || header.getInt() != magic) throw new IOException("Not a telemetry file: " + file);
+			int fileVersion = header.getInt();
+			int columnCount = header.getInt();
+			if (fileVersion != version || columnCount != columns.length) throw new IOException("Unsupported telemetry layout in " + file);
+
+			long frames = 0, gaps = 0, first = -1, last = -1;
+			double[] min = new double[columnCount], max = new double[columnCount], sum = new double[columnCount];
+			java.util.Arrays.fill(min, Double.MAX_VALUE);
+			java.util.Arrays.fill(max, -Double.MAX_VALUE);
+			ByteBuffer count = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+			ByteBuffer data = ByteBuffer.allocate(blockFrames * 8 * (columnCount + 1)).order(ByteOrder.LITTLE_ENDIAN);
+			while (readFully(in, count)) {
+				int n = count.getInt();
+				count.clear();
+				if (n < 0) throw new IOException("Corrupt block in " + file);
+				if (data.capacity() < n * 8 * (columnCount + 1)) {
+					data = ByteBuffer.allocate(n * 8 * (columnCount + 1)).order(ByteOrder.LITTLE_ENDIAN);
+				}
+				data.clear().limit(n * 8 * (columnCount + 1));
+				if (!readFully(in, data)) throw new EOFException("Truncated block in " + file);
+				for (int i = 0; i < n; ++i) {
+					long frame = data.getLong();
+					if (first < 0) first = frame;
+					if (last >= 0 && frame > last + 1) gaps += frame - last - 1;
+					last = frame;
+				}
+				for (int c = 0; c < columnCount; ++c) {
+					for (int i = 0; i < n; ++i) {
+						double v = data.getDouble();
+						min[c] = Math.min(min[c], v);
+						max[c] = Math.max(max[c], v);
+						sum[c] += v;
+					}
+				}
+				frames += n;
+			}
+
+			StringBuilder summary = new StringBuilder();
+			summary.append(frames).append(" frames (").append(first).append(" to ").append(last).append("), ")
+				.append(gaps).append(" missing (dropped)\n");
+			for (int c = 0; c < columnCount && frames > 0; ++c) {
+				summary.append(String.format("%-16s min %-14.6g mean %-14.6g max %.6g%n", columns[c], min[c], sum[c] / frames, max[c]));
+			}
+			return summary.toString();
+		}
+	}
+
+	//This method fills the buffer from the channel and flips it, returns false at the end of the file.
+	//Running out part way through is an error, a file only ever ends between blocks.
+	static private boolean readFully(FileChannel in, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (in.read(buffer) < 0) {
+				if (buffer.position() == 0) return false;
+				throw new EOFException("Telemetry file ends part way through a record.");
+			}
+		}
+		buffer.flip();
+		return true;
+	}
+
+	//Prints the summary of each telemetry file given.
+	public static void main(String[] args) throws IOException {
+		if (args.length == 0) {
+			System.out.println("Usage: java pbd.TelemetryLog <telemetry file>...");
+			return;
+		}
+		for (String arg : args) {
+			System.out.println(arg);
+			System.out.print(summarize(Paths.get(arg)));
+		}
+	}
+}
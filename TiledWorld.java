@@ -0,0 +1,485 @@
+package pbd;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+ * This class simulates many bodies by splitting the world into a grid of spatial tiles.
+ * The per body stages, integrating and Verlet, run over every body at once through a BodyPipeline.
+ * Every tile has its own worker thread which solves the shape constraints of its bodies and the contacts
+ * 	among them and against the static bodies, with its own constraint batches and particle table.
+ * A body belongs to the tile holding its origin at the start of a step, so bodies migrate between tiles
+ * 	simply by moving.
+ * Contacts between bodies of different tiles are left for a boundary phase, run on the calling thread once
+ * 	all tiles are done, and then Verlet runs for every body that was stepped.
+ * 	~Two bodies of different tiles can only overlap if at least one of them reaches out of its own tile,
+ * 		so the phase starts from those bodies and gathers every body of another tile whose box overlaps them.
+ * Static bodies (mass of zero) are never moved, so any tile can read them at the same time.
+ * Two dynamic bodies in contact share the correction by their masses, and an overlap that was already there
+ * 	at the start of the frame is separated without becoming velocity, so bodies come to rest touching.
+ * With a LevelOfDetail policy set, bodies away from the view are stepped less often and with fewer iterations.
+ * 	~A body stepped less often takes one step over every frame it skipped, so it keeps up with the others.
+ * 	~The bounds given to the constructor are where bodies are simulated at all, leaving them culls a body.
+ * 	~The view belongs to the policy and only decides the detail, so it would normally lie inside the bounds.
+ * 	~A body paused by the policy is not moved that frame, but the bodies being stepped still collide with it,
+ * 		in the tile phase and in the boundary phase alike.
+ * The JavaFX lines of the bodies are not touched here, call NGon.setLinePositions on the application
+ * 	thread after step returns.
+ */
+
+public class TiledWorld implements AutoCloseable {
+	//The bounds the tiles cover, bodies leaving them are culled like NGon.update always has
+	private Collision bounds;
+	private int tilesX, tilesY;
+	private Tile[] tiles;
+	private ExecutorService[] workers;//worker [t] only ever runs tile [t]
+	private Future<?>[] pending;
+	private ArrayList<NGon> dynamicBodies = new ArrayList<NGon>();
+	private ArrayList<NGon> staticBodies = new ArrayList<NGon>();
+	private ArrayList<NGon> culled = new ArrayList<NGon>();
+	//Per body stages, the bodies stepped this frame with their tile and whether they stayed in bounds
+	private BodyPipeline pipeline;
+	private NGon[] stepped = new NGon[0];
+	private int[] steppedTile = new int[0];
+	private double[] steppedTime = new double[0];//the step of each body, longer for a body catching up
+	private boolean[] inBounds = new boolean[0];
+	//Boundary phase state
+	private ArrayList<NGon> boundaryBodies = new ArrayList<NGon>();
+	private boolean[] boundaryActive = new boolean[0];//false for a body paused this frame, only a reference
+	private Set<NGon> boundarySet = Collections.newSetFromMap(new IdentityHashMap<NGon, Boolean>());
+	private int[] boundaryOwner = new int[0];
+	private Tile boundary;
+	//Optional level of detail policy, null steps every body every frame
+	private LevelOfDetail detail = null;
+
+	//This class is the per tile working set, nothing in it is shared with another tile.
+	private class Tile {
+		private double minX, minY, maxX, maxY;
+		private ArrayList<NGon> bodies = new ArrayList<NGon>();
+		private ArrayList<NGon> active = new ArrayList<NGon>();//the bodies stepped this frame
+		private ArrayList<NGon> skipped = new ArrayList<NGon>();//the bodies paused by the level of detail this frame
+		//One pair of batches per level of detail, so coarse bodies can get fewer iterations
+		private DistanceBatch[] distances = new DistanceBatch[LevelOfDetail.levels];
+		private ContactBatch[] contacts = new ContactBatch[LevelOfDetail.levels];
+		private Vec2[] particles = new Vec2[0];
+		//The same table at the start of the frame, the old positions of the bodies stepped this frame
+		private Vec2[] previous = new Vec2[0];
+		private double[] previousX = new double[0], previousY = new double[0];
+		private Vec2[] previousOrigins = new Vec2[0];
+		private boolean[] activeFlags = new boolean[0];
+		private int[] bodyBase = new int[0];
+		private int staticBase, particleCount;
+		private int[] candidates = new int[64];
+		private int[] stack = new int[16];
+		
+		private Tile() {
+			for (int l = 0; l < LevelOfDetail.levels; ++l) {
+				distances[l] = new DistanceBatch();
+				contacts[l] = new ContactBatch();
+			}
+		}
+
+		//This method adds the contacts of every vertex of incident that lies inside reference.
+		//A reference that moves takes its share of the correction through the contact it gets the other way
+		//	around, so each side only corrects by its share; one that cannot move (static, or paused this
+		//	frame) leaves the whole correction to the incident.
+		private void addContacts(ContactBatch contacts, NGon incident, int incidentBase, NGon reference, int referenceBase,
+				boolean referenceMoves) {
+			//ContactBatch follows Constraint, where a mass of 0 is immovable, so the shares are inverse masses
+			double incidentShare = 1.0, referenceShare = 0.0;
+			if (referenceMoves && reference.mass > 0) {
+				incidentShare = 1.0 / incident.mass;
+				referenceShare = 1.0 / reference.mass;
+			}
+			HullHierarchy h = reference.getHierarchy();
+			if (stack.length < h.getStackSize()) stack = new int[h.getStackSize()];
+			Vec2[] incVerts = incident.getVertices();
+			Vec2[] refVerts = reference.getVertices();
+			if (candidates.length < refVerts.length) candidates = new int[refVerts.length];
+			for (int v = 0; v < incVerts.length; ++v) {
+				int candidateCount = Math.min(candidates.length, h.query(incVerts[v].x, incVerts[v].y, candidates, stack));
+				for (int c = 0; c < candidateCount; ++c) {
+					int i = candidates[c];
+					if (Mechanics.intersectionNarrow(incVerts[v], refVerts, reference.getOrigin(), i)) {
+						contacts.add(incidentBase + v, referenceBase + i,
+								referenceBase + ((i == refVerts.length - 1) ? 0 : i + 1), incidentShare, referenceShare);
+					}
+				}
+			}
+		}
+
+		//This method fills the particle table with the given bodies, each body's vertices followed by its
+		//	origin, and then the vertices of every static body.
+		//The previous table gets the old positions of the owned bodies that are active, the others have not
+		//	moved this frame so their current positions are where they started.
+		private void buildParticleTable(ArrayList<NGon> owned, boolean[] ownedActive) {
+			int count = 0;
+			for (NGon body : owned) count += body.getVertices().length + 1;
+			staticBase = count;
+			for (NGon body : staticBodies) count += body.getVertices().length;
+			if (particles.length < count) {
+				particles = new Vec2[count];
+				previous = new Vec2[count];
+				previousX = new double[count];
+				previousY = new double[count];
+			}
+			if (bodyBase.length < owned.size() + staticBodies.size()) bodyBase = new int[owned.size() + staticBodies.size()];
+			int next = 0;
+			for (int b = 0; b < owned.size(); ++b) {
+				Vec2[] verts = owned.get(b).getVertices();
+				bodyBase[b] = next;
+				System.arraycopy(verts, 0, particles, next, verts.length);
+				System.arraycopy(ownedActive[b] ? owned.get(b).oldVertices : verts, 0, previous, next, verts.length);
+				next += verts.length;
+				previous[next] = ownedActive[b] ? previousOrigin(b, owned.get(b).oldVertices) : owned.get(b).getOrigin();
+				particles[next++] = owned.get(b).getOrigin();
+			}
+			for (int s = 0; s < staticBodies.size(); ++s) {
+				Vec2[] verts = staticBodies.get(s).getVertices();
+				bodyBase[owned.size() + s] = next;
+				System.arraycopy(verts, 0, particles, next, verts.length);
+				System.arraycopy(verts, 0, previous, next, verts.length);
+				next += verts.length;
+			}
+			particleCount = next;
+		}
+
+		//This method returns a scratch position at the center of the box around the given old vertices,
+		//	which is where NGon.update put the origin at the start of the frame.
+		private Vec2 previousOrigin(int b, Vec2[] oldVertices) {
+			if (previousOrigins.length <= b) {
+				int first = previousOrigins.length;
+				previousOrigins = Arrays.copyOf(previousOrigins, Math.max(b + 1, previousOrigins.length * 2));
+				for (int i = first; i < previousOrigins.length; ++i) previousOrigins[i] = new Vec2(0.0, 0.0);
+			}
+			double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+			for (Vec2 v : oldVertices) {
+				minX = Math.min(minX, v.x);
+				minY = Math.min(minY, v.y);
+				maxX = Math.max(maxX, v.x);
+				maxY = Math.max(maxY, v.y);
+			}
+			previousOrigins[b].x = (minX + maxX) * 0.5;
+			previousOrigins[b].y = (minY + maxY) * 0.5;
+			return previousOrigins[b];
+		}
+
+		//This method separates the contacts that already overlapped at the start of the frame before the solve.
+		//The contacts and shapes are solved on the previous table and each position is moved the same way in both
+		//	tables, so that part of the correction never turns into velocity in Verlet, only the overlap the
+		//	frame's motion made does, which is what cancels the motion into the contact.
+		private void separateOverlaps(int iterations) {
+			for (int p = 0; p < particleCount; ++p) {
+				previousX[p] = previous[p].x;
+				previousY[p] = previous[p].y;
+			}
+			for (int i = 0; i < iterations; ++i) {
+				for (int l = 0; l < LevelOfDetail.levels; ++l) {
+					if (l > 0 && (detail == null || i >= detail.getIterations(l, iterations))) break;
+					distances[l].solve(previous);
+					contacts[l].solve(previous);
+				}
+			}
+			for (int p = 0; p < particleCount; ++p) {
+				if (previous[p] == particles[p]) continue;
+				particles[p].x += previous[p].x - previousX[p];
+				particles[p].y += previous[p].y - previousY[p];
+			}
+		}
+
+		//This method solves the batches for a number of iterations and empties them.
+		//The batches of coarser levels stop after the iterations the level of detail policy gives them.
+		private void solve(int iterations) {
+			separateOverlaps(iterations);
+			for (int i = 0; i < iterations; ++i) {
+				for (int l = 0; l < LevelOfDetail.levels; ++l) {
+					if (l > 0 && (detail == null || i >= detail.getIterations(l, iterations))) break;
+					distances[l].solve(particles);
+					contacts[l].solve(particles);
+				}
+			}
+			for (int l = 0; l < LevelOfDetail.levels; ++l) {
+				distances[l].clear();
+				contacts[l].clear();
+			}
+		}
+
+		//Tile phase: contacts against static bodies and bodies of the same tile, then solve.
+		//The active bodies are already integrated and come first in bodies, followed by the skipped ones.
+		//Bodies the level of detail policy skips this frame stay in place, but others can still collide with them.
+		private void step(int iterations) {
+			if (activeFlags.length < bodies.size()) activeFlags = new boolean[bodies.size()];
+			for (int b = 0; b < bodies.size(); ++b) activeFlags[b] = b < active.size();
+			buildParticleTable(bodies, activeFlags);
+			for (int b = 0; b < active.size(); ++b) {
+				NGon body = bodies.get(b);
+				int level = (detail == null) ? 0 : detail.getLevel(body);
+				body.getPrototype().addConstraints(distances[level], bodyBase[b]);
+				for (int s = 0; s < staticBodies.size(); ++s) {
+					NGon ground = staticBodies.get(s);
+					if (!body.intersectionBroad(ground)) continue;
+					body.clampToImpact(ground.getVertices(), ground.getOrigin());
+					addContacts(contacts[level], body, bodyBase[b], ground, bodyBase[bodies.size() + s], false);
+				}
+				for (int o = 0; o < bodies.size(); ++o) {
+					if (o != b && body.intersectionBroad(bodies.get(o))) {
+						addContacts(contacts[level], body, bodyBase[b], bodies.get(o), bodyBase[o], o < active.size());
+					}
+				}
+			}
+			solve(iterations);
+		}
+	}
+
+	//Constructor splits the bounds into tilesX by tilesY tiles and starts one worker per tile.
+	//The bounds are the simulated region and cull bodies leaving it, independent of any level of detail view.
+	public TiledWorld(Collision bounds, int tilesX, int tilesY) throws IllegalArgumentException {
+		this(bounds, tilesX, tilesY, new BodyPipeline());
+	}
+
+	//Constructor with a specific pipeline for the per body stages.
+	public TiledWorld(Collision bounds, int tilesX, int tilesY, BodyPipeline pipeline) throws IllegalArgumentException {
+		if (tilesX < 1 || tilesY < 1) throw new IllegalArgumentException("Need at least one tile along each axis.");
+		this.bounds = bounds;
+		this.pipeline = pipeline;
+		this.tilesX = tilesX;
+		this.tilesY = tilesY;
+		tiles = new Tile[tilesX * tilesY];
+		workers = new ExecutorService[tiles.length];
+		pending = new Future<?>[tiles.length];
+		for (int t = 0; t < tiles.length; ++t) {
+			tiles[t] = new Tile();
+			workers[t] = Executors.newSingleThreadExecutor(task -> {
+				Thread thread = new Thread(task, "pbd-tile");
+				thread.setDaemon(true);//Do not keep the application alive
+				return thread;
+			});
+		}
+		boundary = new Tile();
+	}
+
+	//This method adds a body to the world, bodies with a mass of zero are static.
+	public void addBody(NGon body) {
+		if (body.mass > 0) {
+			dynamicBodies.add(body);
+		} else {
+			staticBodies.add(body);
+		}
+	}
+
+	//This method removes a body from the world.
+	public boolean removeBody(NGon body) {
+		if (detail != null) detail.forget(body);
+		return dynamicBodies.remove(body) || staticBodies.remove(body);
+	}
+
+	//This method sets the level of detail policy, or null to step every body every frame at full detail.
+	//Every body starts over at full detail under the new policy.
+	public void setLevelOfDetail(LevelOfDetail detail) {
+		this.detail = detail;
+		if (detail != null) detail.reset();
+	}
+	
+	//This method returns the dynamic bodies, in no particular order.
+	public ArrayList<NGon> getBodies() {
+		return dynamicBodies;
+	}
+
+	//This method returns the bodies culled for leaving the bounds since the last call, and forgets them.
+	public ArrayList<NGon> takeCulled() {
+		ArrayList<NGon> taken = new ArrayList<NGon>(culled);
+		culled.clear();
+		return taken;
+	}
+
+	//This method advances every dynamic body by one step of dT.
+	//With a level of detail policy, a body stepped after skipping frames takes one step over all of them.
+	public void step(double dT, int iterations) {
+		//Bin the bodies by origin, this is where they migrate between tiles
+		updateTileBounds();
+		for (Tile tile : tiles) {
+			tile.bodies.clear();
+			tile.active.clear();
+			tile.skipped.clear();
+		}
+		if (stepped.length < dynamicBodies.size()) {
+			stepped = new NGon[dynamicBodies.size()];
+			steppedTile = new int[dynamicBodies.size()];
+			steppedTime = new double[dynamicBodies.size()];
+			inBounds = new boolean[dynamicBodies.size()];
+		}
+		int count = 0;
+		for (NGon body : dynamicBodies) {
+			int t = tileOf(body.getOrigin().x, body.getOrigin().y);
+			if (detail != null && !detail.schedule(body)) {
+				tiles[t].skipped.add(body);
+			} else {
+				stepped[count] = body;
+				steppedTime[count] = (detail == null) ? dT : dT * detail.getStepFrames(body);
+				steppedTile[count++] = t;
+			}
+		}
+
+		//Integrate phase, every body stepped this frame at once
+		pipeline.integrate(stepped, count, steppedTime, bounds, inBounds);
+		for (int i = 0; i < count; ++i) {
+			if (inBounds[i]) {
+				tiles[steppedTile[i]].active.add(stepped[i]);
+			} else {
+				culled.add(stepped[i]);
+				if (detail != null) detail.forget(stepped[i]);
+			}
+		}
+		//Active bodies first, so [0, active.size()) of a tile's particle table are the ones being stepped
+		dynamicBodies.clear();
+		for (Tile tile : tiles) {
+			tile.bodies.addAll(tile.active);
+			tile.bodies.addAll(tile.skipped);
+			dynamicBodies.addAll(tile.bodies);
+		}
+
+		//Tile phase
+		for (int t = 0; t < tiles.length; ++t) {
+			Tile tile = tiles[t];
+			pending[t] = tile.active.isEmpty() ? null : workers[t].submit(() -> tile.step(iterations));
+		}
+		awaitTiles();
+
+		//Boundary phase, contacts between bodies owned by different tiles
+		solveBoundary(iterations);
+
+		//Verlet phase
+		count = 0;
+		for (Tile tile : tiles) {
+			for (NGon body : tile.active) {
+				steppedTime[count] = (detail == null) ? dT : dT * detail.getStepFrames(body);
+				stepped[count++] = body;
+			}
+		}
+		pipeline.verlet(stepped, count, steppedTime);
+	}
+
+	//This method stops the workers.
+	@Override
+	public void close() {
+		for (ExecutorService worker : workers) {
+			worker.shutdown();
+		}
+	}
+
+	//This method finds the bodies whose AABB reaches out of their own tile, gathers every body of another
+	//	tile whose AABB overlaps one of them, and solves the contacts among the gathered bodies of different tiles.
+	//Paused bodies take part as references only, they get no contacts or shape constraints of their own.
+	//The gathered bodies are solved in tile order, the order a single tile would have solved them in.
+	private void solveBoundary(int iterations) {
+		boundaryBodies.clear();
+		boundarySet.clear();
+		if (boundaryOwner.length < dynamicBodies.size()) {
+			boundaryOwner = new int[dynamicBodies.size()];
+			boundaryActive = new boolean[dynamicBodies.size()];
+		}
+		//Tile bodies hold the active bodies followed by the paused ones after the tile phase
+		for (int t = 0; t < tiles.length; ++t) {
+			Tile tile = tiles[t];
+			for (NGon body : tile.bodies) {
+				Collision c = body.col;
+				if (c.min.x < tile.minX || c.max.x > tile.maxX || c.min.y < tile.minY || c.max.y > tile.maxY) {
+					boundaryOwner[boundaryBodies.size()] = t;
+					boundaryBodies.add(body);
+				}
+			}
+		}
+		for (int a = 0; a < boundaryBodies.size(); ++a) {
+			NGon body = boundaryBodies.get(a);
+			for (int t = 0; t < tiles.length; ++t) {
+				if (t == boundaryOwner[a]) continue;
+				for (NGon other : tiles[t].bodies) {
+					if (body.intersectionBroad(other)) {
+						boundarySet.add(body);
+						boundarySet.add(other);
+					}
+				}
+			}
+		}
+		boundaryBodies.clear();
+		for (int t = 0; t < tiles.length; ++t) {
+			Tile tile = tiles[t];
+			for (int b = 0; b < tile.bodies.size(); ++b) {
+				NGon body = tile.bodies.get(b);
+				if (!boundarySet.contains(body)) continue;
+				boundaryOwner[boundaryBodies.size()] = t;
+				boundaryActive[boundaryBodies.size()] = b < tile.active.size();
+				boundaryBodies.add(body);
+			}
+		}
+		if (boundaryBodies.size() < 2) return;
+		boundary.buildParticleTable(boundaryBodies, boundaryActive);
+		boolean touching = false;
+		for (int a = 0; a < boundaryBodies.size(); ++a) {
+			if (!boundaryActive[a]) continue;
+			for (int b = 0; b < boundaryBodies.size(); ++b) {
+				if (boundaryOwner[a] == boundaryOwner[b]) continue;
+				if (boundaryBodies.get(a).intersectionBroad(boundaryBodies.get(b))) {
+					boundary.addContacts(boundary.contacts[0], boundaryBodies.get(a), boundary.bodyBase[a], boundaryBodies.get(b), 
+							boundary.bodyBase[b], boundaryActive[b]);
+					touching = true;
+				}
+			}
+		}
+		if (!touching) return;
+		//Keep the shapes while the contacts push them apart
+		for (int a = 0; a < boundaryBodies.size(); ++a) {
+			if (boundaryActive[a]) boundaryBodies.get(a).getPrototype().addConstraints(boundary.distances[0], boundary.bodyBase[a]);
+		}
+		boundary.solve(iterations);
+	}
+
+	//This method blocks until every submitted tile task is done.
+	private void awaitTiles() {
+		for (int t = 0; t < pending.length; ++t) {
+			if (pending[t] == null) continue;
+			try {
+				pending[t].get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while waiting for tile " + t, e);
+			} catch (ExecutionException e) {
+				throw new IllegalStateException("Tile " + t + " failed to step", e.getCause());
+			}
+			pending[t] = null;
+		}
+	}
+
+	//This method recomputes the rectangle of every tile, the caller may change the bounds between steps.
+	private void updateTileBounds() {
+		double width = (bounds.max.x - bounds.min.x) / tilesX;
+		double height = (bounds.max.y - bounds.min.y) / tilesY;
+		for (int y = 0; y < tilesY; ++y) {
+			for (int x = 0; x < tilesX; ++x) {
+				Tile tile = tiles[y * tilesX + x];
+				tile.minX = bounds.min.x + x * width;
+				tile.minY = bounds.min.y + y * height;
+				tile.maxX = tile.minX + width;
+				tile.maxY = tile.minY + height;
+			}
+		}
+	}
+
+	//This method returns the index of the tile holding a position, positions outside go to the closest tile.
+	private int tileOf(double x, double y) {
+		double width = (bounds.max.x - bounds.min.x) / tilesX;
+		double height = (bounds.max.y - bounds.min.y) / tilesY;
+		int tx = (width > 0.0) ? (int)Math.floor((x - bounds.min.x) / width) : 0;
+		int ty = (height > 0.0) ? (int)Math.floor((y - bounds.min.y) / height) : 0;
+		tx = Math.max(0, Math.min(tilesX - 1, tx));
+		ty = Math.max(0, Math.min(tilesY - 1, ty));
+		return ty * tilesX + tx;
+	}
+}
@@ -0,0 +1,59 @@
+package pbd;
+
+/*
+ * This class picks the step size for the simulation from how far particles moved in the last step.
+ * The goal is that no particle moves more than a set fraction of the shortest edge in one step, which
+ * 	keeps the constraints and the contact tests valid while letting quiet scenes take large steps.
+ * The step shrinks right away when the motion gets violent, but only grows back gradually so a body
+ * 	bouncing on contact does not flip between large and small steps every frame.
+ * The suggested step is kept within the bounds given to the constructor.
+ */
+
+public class TimestepController {
+	//How much the step may grow per recorded step
+	static final private double growthLimit = 1.25;
+
+	private double minStep, maxStep;
+	private double targetRatio;//the allowed displacement per step as a fraction of the shortest edge
+	private double step;//the current suggestion
+
+	//Constructor sets the bounds for the step and the fraction of an edge a particle may move per step.
+	public TimestepController(double minStep, double maxStep, double targetRatio) throws IllegalArgumentException {
+		if (minStep <= 0.0 || maxStep < minStep) throw new IllegalArgumentException("The step bounds need to be POSITIVE with the minimum not above the maximum.");
+		if (targetRatio <= 0.0) throw new IllegalArgumentException("The target ratio needs to be a POSITIVE value.");
+		this.minStep = minStep;
+		this.maxStep = maxStep;
+		this.targetRatio = targetRatio;
+		step = maxStep;
+	}
+
+	//This method feeds back the largest particle displacement seen with a step of stepTaken,
+	//	along with the shortest edge length, and updates the suggested step.
+	//Displacement is treated as proportional to the step size, which holds for the NGon integrator as
+	//	long as the motion is dominated by velocity (dT * v) rather than by one step of gravity (dT * dT * g).
+	public void record(double maxDisplacement, double minEdgeLength, double stepTaken) {
+		if (minEdgeLength <= 0.0 || stepTaken <= 0.0) return;
+		double ideal = maxStep;
+		if (maxDisplacement > 0.0) {
+			ideal = stepTaken * (targetRatio * minEdgeLength) / maxDisplacement;
+		}
+		ideal = Math.min(ideal, step * growthLimit);
+		step = Math.max(minStep, Math.min(maxStep, ideal));
+	}
+
+	//This method returns the suggested step size.
+	public double getStep() {
+		return step;
+	}
+
+	//This method returns how many substeps a frame of frameStep should be split into so that
+	//	each substep is no larger than the suggested step.
+	public int getSubsteps(double frameStep) {
+		return Math.max(1, (int)Math.ceil(frameStep / step - 1e-9));
+	}
+
+	//This method starts over from the largest step, e.g. when a new scene is built.
+	public void reset() {
+		step = maxStep;
+	}
+}
@@ -0,0 +1,274 @@
+package pbd;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/*
+ * This class answers spatial questions about a set of bodies, such as "what body is under this point",
+ * 	"what bodies touch this region" and "what does this ray hit".
+ * The bodies' AABBs (Collision objects) are binned into a uniform grid so a query only tests the bodies
+ * 	sharing cells with it, rather than every body pair at a time.
+ * The grid is stored as flat arrays, the body indices for cell c are cellBodies[cellStart[c], cellStart[c + 1]).
+ * Rebuild the grid after the bodies have moved, e.g. once per frame after their update.
+ * Queries do not allocate, results are written into arrays or a RayHit handed in by the caller, and the
+ * 	batched forms can be spread over threads since queries only read the grid.
+ */
+
+public class WorldQuery {
+	//Keeps the grid from growing unbounded for a spread out or degenerate set of bodies
+	static final private int maxCellsPerAxis = 256;
+
+	//This class holds the result of a ray query, reuse one per thread to avoid allocating per query.
+	public static class RayHit {
+		public int body = -1;//index of the body hit, -1 if nothing was hit
+		public int edge = -1;//hull edge index, the edge from vertex [edge] to vertex [edge + 1]
+		public double t = 0.0;//distance along the ray direction, in units of the direction's length
+		public double normalX = 0.0, normalY = 0.0;//unit normal of the edge hit, facing the ray origin
+	}
+
+	private double cellSize;
+	private NGon[] bodies = new NGon[0];
+	private int bodyCount = 0;
+	//Grid bounds and dimensions
+	private double minX, minY;
+	private double gridSize;//the cell size actually used by the last rebuild, grows for very spread out bodies
+	private int cellsX = 0, cellsY = 0;
+	//Flat cell storage
+	private int[] cellStart = new int[1];
+	private int[] cellBodies = new int[0];
+
+	//Constructor sets the edge length of a grid cell, roughly the size of a typical body works well.
+	public WorldQuery(double cellSize) throws IllegalArgumentException {
+		if (cellSize <= 0.0) throw new IllegalArgumentException("The cell size needs to be a POSITIVE value.");
+		this.cellSize = cellSize;
+	}
+
+	//This method bins the first bodyCount bodies into the grid by their current AABB.
+	public void rebuild(NGon[] bodies, int bodyCount) throws IllegalArgumentException {
+		if (bodyCount < 0 || bodyCount > bodies.length) throw new IllegalArgumentException("No valid body count " + bodyCount);
+		this.bodies = bodies;
+		this.bodyCount = bodyCount;
+		if (bodyCount == 0) {
+			cellsX = cellsY = 0;
+			return;
+		}
+		//Grid bounds are the union of the bodies' AABBs
+		minX = Double.MAX_VALUE;
+		minY = Double.MAX_VALUE;
+		double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+		for (int b = 0; b < bodyCount; ++b) {
+			Collision c = bodies[b].col;
+			minX = Math.min(minX, c.min.x);
+			minY = Math.min(minY, c.min.y);
+			maxX = Math.max(maxX, c.max.x);
+			maxY = Math.max(maxY, c.max.y);
+		}
+		double size = Math.max(cellSize, Math.max(maxX - minX, maxY - minY) / maxCellsPerAxis);
+		cellsX = Math.max(1, Math.min(maxCellsPerAxis, (int)Math.ceil((maxX - minX) / size)));
+		cellsY = Math.max(1, Math.min(maxCellsPerAxis, (int)Math.ceil((maxY - minY) / size)));
+		gridSize = size;
+		int cellCount = cellsX * cellsY;
+		if (cellStart.length < cellCount + 1) cellStart = new int[cellCount + 1];
+		Arrays.fill(cellStart, 0, cellCount + 1, 0);
+		//First pass counts the bodies per cell, second pass fills the cells
+		int total = 0;
+		for (int b = 0; b < bodyCount; ++b) {
+			Collision c = bodies[b].col;
+			int x0 = cellX(c.min.x), x1 = cellX(c.max.x), y0 = cellY(c.min.y), y1 = cellY(c.max.y);
+			for (int y = y0; y <= y1; ++y) {
+				for (int x = x0; x <= x1; ++x) {
+					++cellStart[y * cellsX + x + 1];
+				}
+			}
+			total += (x1 - x0 + 1) * (y1 - y0 + 1);
+		}
+		for (int i = 0; i < cellCount; ++i) {
+			cellStart[i + 1] += cellStart[i];
+		}
+		if (cellBodies.length < total) cellBodies = new int[total];
+		int[] fill = Arrays.copyOf(cellStart, cellCount);
+		for (int b = 0; b < bodyCount; ++b) {
+			Collision c = bodies[b].col;
+			int x0 = cellX(c.min.x), x1 = cellX(c.max.x), y0 = cellY(c.min.y), y1 = cellY(c.max.y);
+			for (int y = y0; y <= y1; ++y) {
+				for (int x = x0; x <= x1; ++x) {
+					cellBodies[fill[y * cellsX + x]++] = b;
+				}
+			}
+		}
+	}
+
+	//This method returns the index of a body whose hull contains the point, or -1 if there is none.
+	public int queryPoint(double x, double y) {
+		if (cellsX == 0 || x < minX || y < minY || x > minX + cellsX * gridSize || y > minY + cellsY * gridSize) return -1;
+		//Clamped, a point exactly on the grid's max edge belongs to the last cell
+		int cell = cellY(y) * cellsX + cellX(x);
+		for (int i = cellStart[cell]; i < cellStart[cell + 1]; ++i) {
+			NGon body = bodies[cellBodies[i]];
+			Collision c = body.col;
+			if (x < c.min.x || x > c.max.x || y < c.min.y || y > c.max.y) continue;
+			if (hullContains(body.getVertices(), body.getOrigin(), x, y)) return cellBodies[i];
+		}
+		return -1;
+	}
+
+	//This method writes the indices of the bodies whose AABB overlaps the region into results.
+	//Returns how many bodies overlap, which may be more than results could hold.
+	public int queryRegion(double regionMinX, double regionMinY, double regionMaxX, double regionMaxY, int[] results) {
+		if (cellsX == 0) return 0;
+		int x0 = cellX(regionMinX), x1 = cellX(regionMaxX), y0 = cellY(regionMinY), y1 = cellY(regionMaxY);
+		int found = 0;
+		for (int y = y0; y <= y1; ++y) {
+			for (int x = x0; x <= x1; ++x) {
+				int cell = y * cellsX + x;
+				for (int i = cellStart[cell]; i < cellStart[cell + 1]; ++i) {
+					Collision c = bodies[cellBodies[i]].col;
+					if (c.min.x > regionMaxX || c.max.x < regionMinX || c.min.y > regionMaxY || c.max.y < regionMinY) continue;
+					//A body spans several cells, only report it from the cell holding the corner of the overlap
+					if (cellX(Math.max(c.min.x, regionMinX)) != x || cellY(Math.max(c.min.y, regionMinY)) != y) continue;
+					if (found < results.length) results[found] = cellBodies[i];
+					++found;
+				}
+			}
+		}
+		return found;
+	}
+
+	//This method finds the closest hull edge hit by the ray origin + t * direction, for t in [0, maxT].
+	//Returns whether something was hit, the details are written into hit.
+	public boolean raycast(double originX, double originY, double directionX, double directionY, double maxT, RayHit hit) {
+		hit.body = -1;
+		hit.edge = -1;
+		hit.t = maxT;
+		if (cellsX == 0) return false;
+		//Clip the ray to the grid bounds
+		double gridMaxX = minX + cellsX * gridSize, gridMaxY = minY + cellsY * gridSize;
+		double tEnter = 0.0, tExit = maxT;
+		if (directionX != 0.0) {
+			double t0 = (minX - originX) / directionX, t1 = (gridMaxX - originX) / directionX;
+			tEnter = Math.max(tEnter, Math.min(t0, t1));
+			tExit = Math.min(tExit, Math.max(t0, t1));
+		} else if (originX < minX || originX > gridMaxX) {
+			return false;
+		}
+		if (directionY != 0.0) {
+			double t0 = (minY - originY) / directionY, t1 = (gridMaxY - originY) / directionY;
+			tEnter = Math.max(tEnter, Math.min(t0, t1));
+			tExit = Math.min(tExit, Math.max(t0, t1));
+		} else if (originY < minY || originY > gridMaxY) {
+			return false;
+		}
+		if (tEnter > tExit) return false;
+		//Walk the cells along the ray (Amanatides and Woo), stopping once a hit is closer than the next cell
+		int cx = cellX(originX + directionX * tEnter), cy = cellY(originY + directionY * tEnter);
+		int stepX = (directionX > 0.0) ? 1 : -1, stepY = (directionY > 0.0) ? 1 : -1;
+		double nextX = (directionX == 0.0) ? Double.MAX_VALUE :
+			(minX + (cx + ((stepX > 0) ? 1 : 0)) * gridSize - originX) / directionX;
+		double nextY = (directionY == 0.0) ? Double.MAX_VALUE :
+			(minY + (cy + ((stepY > 0) ? 1 : 0)) * gridSize - originY) / directionY;
+		double deltaX = (directionX == 0.0) ? Double.MAX_VALUE : gridSize / Math.abs(directionX);
+		double deltaY = (directionY == 0.0) ? Double.MAX_VALUE : gridSize / Math.abs(directionY);
+		while (true) {
+			int cell = cy * cellsX + cx;
+			for (int i = cellStart[cell]; i < cellStart[cell + 1]; ++i) {
+				raycastBody(cellBodies[i], originX, originY, directionX, directionY, hit);
+			}
+			double cellExit = Math.min(nextX, nextY);
+			if (hit.body >= 0 && hit.t <= cellExit) return true;
+			if (cellExit > tExit) break;
+			if (nextX < nextY) {
+				cx += stepX;
+				nextX += deltaX;
+				if (cx < 0 || cx >= cellsX) break;
+			} else {
+				cy += stepY;
+				nextY += deltaY;
+				if (cy < 0 || cy >= cellsY) break;
+			}
+		}
+		return hit.body >= 0;
+	}
+
+	//This method answers count point queries, points are {x0, y0, x1, y1, ...}.
+	//results[i] is the body under point i, or -1.
+	public void queryPointBatch(double[] points, int count, int[] results, boolean parallel) {
+		if (parallel) {
+			IntStream.range(0, count).parallel().forEach(i -> results[i] = queryPoint(points[i * 2], points[i * 2 + 1]));
+		} else {
+			for (int i = 0; i < count; ++i) {
+				results[i] = queryPoint(points[i * 2], points[i * 2 + 1]);
+			}
+		}
+	}
+
+	//This method answers count ray queries, rays are {originX0, originY0, directionX0, directionY0, ...}.
+	//hitBody[i] is the body hit by ray i (or -1), hitEdge[i] the edge and hitT[i] the distance along the ray.
+	//The parallel form splits the rays into one contiguous range per worker, each with its own RayHit.
+	public void raycastBatch(double[] rays, int count, double maxT, int[] hitBody, int[] hitEdge,
+			double[] hitT, boolean parallel) {
+		int chunks = parallel ? Math.max(1, Math.min(count, Runtime.getRuntime().availableProcessors() * 4)) : 1;
+		IntStream range = IntStream.range(0, chunks);
+		(parallel ? range.parallel() : range).forEach(chunk -> {
+			RayHit hit = new RayHit();
+			int end = (int)((long)count * (chunk + 1) / chunks);
+			for (int i = (int)((long)count * chunk / chunks); i < end; ++i) {
+				int r = i * 4;
+				raycast(rays[r], rays[r + 1], rays[r + 2], rays[r + 3], maxT, hit);
+				hitBody[i] = hit.body;
+				hitEdge[i] = hit.edge;
+				hitT[i] = hit.t;
+			}
+		});
+	}
+
+	//This method tests a ray against every hull edge of one body, keeping the closest hit in hit.
+	private void raycastBody(int bodyIndex, double originX, double originY, double directionX, double directionY, RayHit hit) {
+		Vec2[] verts = bodies[bodyIndex].getVertices();
+		for (int e = 0; e < verts.length; ++e) {
+			Vec2 a = verts[e];
+			Vec2 b = (e == verts.length - 1) ? verts[0] : verts[e + 1];
+			double eX = b.x - a.x, eY = b.y - a.y;
+			double denominator = directionX * eY - directionY * eX;
+			if (denominator == 0.0) continue;
+			double aX = a.x - originX, aY = a.y - originY;
+			double t = (aX * eY - aY * eX) / denominator;
+			double s = (aX * directionY - aY * directionX) / denominator;
+			if (t < 0.0 || t >= hit.t || s < 0.0 || s > 1.0) continue;
+			hit.body = bodyIndex;
+			hit.edge = e;
+			hit.t = t;
+			double mag = 1.0 / Math.sqrt(eX * eX + eY * eY);
+			//Flip the edge normal to face back towards the ray
+			double side = (-eY * directionX + eX * directionY > 0.0) ? -1.0 : 1.0;
+			hit.normalX = -eY * mag * side;
+			hit.normalY = eX * mag * side;
+		}
+	}
+
+	//This method is the same fan of triangles test as Mechanics.intersectionNarrow, without allocating.
+	static private boolean hullContains(Vec2[] verts, Vec2 center, double x, double y) {
+		for (int i = 0; i < verts.length; ++i) {
+			Vec2 a = verts[i];
+			Vec2 b = (i == verts.length - 1) ? verts[0] : verts[i + 1];
+			double abX = b.x - a.x, abY = b.y - a.y;
+			double acX = center.x - a.x, acY = center.y - a.y;
+			double asX = x - a.x, asY = y - a.y;
+			double dividor = abX * acY - abY * acX;
+			double v = (asX * acY - asY * acX) / dividor;
+			double u = (abX * asY - abY * asX) / dividor;
+			if (u >= 0.0 && v >= 0.0 && 1.0 - v - u >= 0.0) return true;
+		}
+		return false;
+	}
+
+	//These methods clamp a coordinate to a cell column or row of the grid.
+	private int cellX(double x) {
+		int c = (int)Math.floor((x - minX) / gridSize);
+		return (c < 0) ? 0 : (c >= cellsX) ? cellsX - 1 : c;
+	}
+
+	private int cellY(double y) {
+		int c = (int)Math.floor((y - minY) / gridSize);
+		return (c < 0) ? 0 : (c >= cellsY) ? cellsY - 1 : c;
+	}
+}
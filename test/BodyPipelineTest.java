@@ -0,0 +1,77 @@
+package pbd;
+
+import java.util.concurrent.ForkJoinPool;
+
+/*
+ * Checks that the per body stages give the same result whether they run in parallel or on the calling
+ * 	thread, on their own and as part of a TiledWorld with bodies landing on a static ground.
+ */
+
+public class BodyPipelineTest {
+	static private void check(boolean condition, String message) {
+		if (!condition) throw new AssertionError(message);
+	}
+
+	//A 20 by 20 grid of small hexagons above a static ground.
+	static private NGon[] scene(NGonPrototype shape) {
+		NGon[] bodies = new NGon[400];
+		for (int i = 0; i < bodies.length; ++i) {
+			bodies[i] = new NGon(shape, 1.0, new Vec2(5.0 + (i % 20) * 10.0, 200.0 + (i / 20) * 9.5));
+		}
+		return bodies;
+	}
+
+	//This method steps the bodies through the pipeline alone, no constraints.
+	static private NGon[] integrate(BodyPipeline pipeline) {
+		NGon[] bodies = scene(new NGonPrototype(6, 3.0));
+		Collision bounds = new Collision(new Vec2(0.0, 0.0), new Vec2(400.0, 400.0));
+		boolean[] inView = new boolean[bodies.length];
+		for (int frame = 0; frame < 20; ++frame) {
+			pipeline.integrate(bodies, bodies.length, 2.0, bounds, inView);
+			pipeline.verlet(bodies, bodies.length, 2.0);
+		}
+		return bodies;
+	}
+
+	//This method steps the bodies in a 2 by 2 TiledWorld, landing on the ground.
+	static private NGon[] world(BodyPipeline pipeline) {
+		NGon[] bodies = scene(new NGonPrototype(6, 3.0));
+		try (TiledWorld world = new TiledWorld(new Collision(new Vec2(0.0, 0.0), new Vec2(400.0, 400.0)), 2, 2, pipeline)) {
+			world.addBody(new NGon(4, 0, new Vec2(200.0, 700.0), 300.0));
+			for (NGon body : bodies) world.addBody(body);
+			for (int frame = 0; frame < 20; ++frame) {
+				world.step(2.0, 4);
+			}
+		}
+		return bodies;
+	}
+
+	//This method compares every vertex bit for bit.
+	static private void same(NGon[] a, NGon[] b, String what) {
+		for (int i = 0; i < a.length; ++i) {
+			Vec2[] va = a[i].getVertices(), vb = b[i].getVertices();
+			for (int v = 0; v < va.length; ++v) {
+				check(va[v].x == vb[v].x && va[v].y == vb[v].y, what + ": body " + i + " vertex " + v + " differs");
+			}
+		}
+	}
+
+	public static void main(String[] args) {
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			BodyPipeline sequential = new BodyPipeline(pool, Integer.MAX_VALUE);
+			BodyPipeline parallel = new BodyPipeline(pool, 1);
+			BodyPipeline automatic = new BodyPipeline(pool);
+			NGon[] expected = integrate(sequential);
+			check(expected[0].getVertices()[0].y > 200.0, "the bodies should have fallen");
+			same(expected, integrate(parallel), "parallel integrate");
+			same(expected, integrate(automatic), "automatic integrate");
+			expected = world(sequential);
+			same(expected, world(parallel), "parallel world");
+			same(expected, world(automatic), "automatic world");
+		} finally {
+			pool.shutdown();
+		}
+		System.out.println("BodyPipelineTest passed");
+	}
+}
@@ -0,0 +1,81 @@
+package pbd;
+
+/*
+ * Checks the continuous pass that keeps fast bodies from tunneling through the ground.
+ * 	~A body moving 40 to 160 pixels in one step is stopped at the ground's top edge by clampToImpact,
+ * 		where the same step without it ends far inside or past the ground.
+ * 	~Motion starting inside the reference is left for the discrete contacts.
+ * 	~Motion parallel to an edge never reports an impact with it.
+ */
+
+public class ContinuousCollisionTest {
+	//Top edge of the ground square
+	static private final double groundTop = 270.0;
+
+	static private void check(boolean condition, String message) {
+		if (!condition) throw new AssertionError(message);
+	}
+
+	//The ground square spans x 80 to 880 and y 270 to 1070.
+	static private NGon ground() {
+		return new NGon(4, 0, new Vec2(480.0, groundTop + 400.0), 400.0);
+	}
+
+	//Drops a hexagon whose lowest vertex starts about 10 pixels above the ground at speed pixels per step,
+	//	returns the lowest vertex after one step.
+	static private double drop(double speed, boolean continuous) {
+		NGon ground = ground();
+		NGon body = new NGon(6, 1.0, new Vec2(480.0, 232.0), 20.0);
+		for (Vec2 v : body.velocity) v.y = speed;
+		Collision everywhere = new Collision(new Vec2(-1e9, -1e9), new Vec2(1e9, 1e9));
+		body.update(1.0, everywhere);
+		if (continuous) body.clampToImpact(ground.getVertices(), ground.getOrigin());
+		double lowest = -Double.MAX_VALUE;
+		for (Vec2 v : body.getVertices()) lowest = Math.max(lowest, v.y);
+		return lowest;
+	}
+
+	public static void main(String[] args) {
+		double start = -Double.MAX_VALUE;
+		for (Vec2 v : new NGon(6, 1.0, new Vec2(480.0, 232.0), 20.0).getVertices()) start = Math.max(start, v.y);
+		check(start < groundTop - 5.0, "the body should start clear of the ground, lowest vertex at " + start);
+
+		for (double speed : new double[] {40.0, 80.0, 160.0}) {
+			double clamped = drop(speed, true);
+			double free = drop(speed, false);
+			check(clamped <= groundTop && clamped > groundTop - 0.1, speed + " per step should stop at the top edge, stopped at " + clamped);
+			check(free > groundTop + 20.0, speed + " per step without the continuous pass should end inside the ground, ended at " + free);
+		}
+
+		NGon ground = ground();
+		Vec2[] verts = ground.getVertices();
+		Vec2 center = ground.getOrigin();
+		//Starting inside, even when the motion leaves through an edge
+		Vec2 inside = new Vec2(480.0, groundTop + 5.0), outside = new Vec2(480.0, groundTop - 50.0);
+		for (int e = 0; e < verts.length; ++e) {
+			check(Mechanics.intersectionSwept(inside, outside, verts, center, e) < 0.0, "motion from inside should not hit edge " + e);
+		}
+		NGon body = new NGon(6, 1.0, new Vec2(480.0, groundTop + 100.0), 20.0);
+		for (Vec2 v : body.velocity) v.y = 50.0;
+		body.update(1.0, new Collision(new Vec2(-1e9, -1e9), new Vec2(1e9, 1e9)));
+		check(body.clampToImpact(verts, center) == 0, "a body already inside should not be clamped");
+
+		//Parallel to the top edge, just above it and along it
+		Vec2 above0 = new Vec2(100.0, groundTop - 1.0), above1 = new Vec2(860.0, groundTop - 1.0);
+		Vec2 on0 = new Vec2(100.0, groundTop), on1 = new Vec2(860.0, groundTop);
+		int tested = 0;
+		for (int e = 0; e < verts.length; ++e) {
+			Vec2 a = verts[e], b = verts[(e + 1) % verts.length];
+			if (Math.abs(a.y - groundTop) > 1e-9 || Math.abs(b.y - groundTop) > 1e-9) continue;
+			++tested;
+			check(Collision.segmentIntersection(above0, above1, a, b) < 0.0, "motion parallel to the edge should not cross it");
+			check(Collision.segmentIntersection(on0, on1, a, b) < 0.0, "motion along the edge has no single time of impact");
+			check(Mechanics.intersectionSwept(above0, above1, verts, center, e) < 0.0, "motion parallel to the edge should not enter it");
+		}
+		check(tested == 1, "the ground should have one top edge, found " + tested);
+		//A plain crossing halfway through the motion
+		double t = Collision.segmentIntersection(new Vec2(0.0, -1.0), new Vec2(0.0, 1.0), new Vec2(-1.0, 0.0), new Vec2(1.0, 0.0));
+		check(Math.abs(t - 0.5) < 1e-12, "the crossing should be halfway, got " + t);
+		System.out.println("ContinuousCollisionTest passed");
+	}
+}
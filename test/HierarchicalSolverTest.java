@@ -0,0 +1,73 @@
+package pbd;
+
+/*
+ * Checks the hierarchical solve on a chain of 200 particles with links of rest length 10.
+ * 	~Stretched by half along its length, 10 iterations with the hierarchy leave far less residual than
+ * 		10 flat iterations (about 0.1 against 69).
+ * 	~Bent into a half circle with every link at its rest length, the chain is already solved and the
+ * 		hierarchy must not pull it straight.
+ */
+
+public class HierarchicalSolverTest {
+	static private final int links = 199;
+	static private final double length = 10.0;
+	static private final int iterations = 10;
+
+	static private void check(boolean condition, String message) {
+		if (!condition) throw new AssertionError(message);
+	}
+
+	static private DistanceBatch chain() {
+		DistanceBatch batch = new DistanceBatch();
+		for (int i = 0; i < links; ++i) batch.add(i, i + 1, length);
+		return batch;
+	}
+
+	static private Vec2[] line(double spacing) {
+		Vec2[] particles = new Vec2[links + 1];
+		for (int i = 0; i <= links; ++i) particles[i] = new Vec2(i * spacing, 0.0);
+		return particles;
+	}
+
+	//Every link of the arc is a chord of the rest length.
+	static private Vec2[] halfCircle() {
+		double step = Math.PI / links;
+		double radius = 0.5 * length / Math.sin(step * 0.5);
+		Vec2[] particles = new Vec2[links + 1];
+		for (int i = 0; i <= links; ++i) {
+			particles[i] = new Vec2(radius * Math.cos(i * step), radius * Math.sin(i * step));
+		}
+		return particles;
+	}
+
+	//This method runs the hierarchy, if given, and then the flat iterations, returning the residual.
+	static private double solve(HierarchicalSolver hierarchy, DistanceBatch batch, Vec2[] particles) {
+		if (hierarchy != null) hierarchy.solve(particles, iterations);
+		for (int i = 0; i < iterations; ++i) batch.solve(particles);
+		return Math.sqrt(batch.residual(particles));
+	}
+
+	public static void main(String[] args) {
+		DistanceBatch batch = chain();
+		HierarchicalSolver hierarchy = new HierarchicalSolver(batch, line(length), links + 1);
+		check(hierarchy.getLevelCount() > 1, "a 200 particle chain should coarsen more than once");
+
+		double flat = solve(null, batch, line(1.5 * length));
+		double hierarchical = solve(hierarchy, batch, line(1.5 * length));
+		System.out.printf("stretched chain residual after %d iterations: flat %.3f, hierarchical %.3f%n", iterations, flat, hierarchical);
+		check(flat > 50.0, "the flat solve should barely have started, residual " + flat);
+		check(hierarchical < 2.0, "the hierarchy should have removed most of the stretch, residual " + hierarchical);
+
+		Vec2[] bent = halfCircle();
+		Vec2[] expected = halfCircle();
+		check(Math.sqrt(batch.residual(bent)) < 1e-9, "the half circle should start solved");
+		double residual = solve(hierarchy, batch, bent);
+		double moved = 0.0;
+		for (int i = 0; i <= links; ++i) {
+			moved = Math.max(moved, Math.hypot(bent[i].x - expected[i].x, bent[i].y - expected[i].y));
+		}
+		check(residual < 1e-6, "the bent chain should stay solved, residual " + residual);
+		check(moved < 1e-6, "the bent chain should stay where it is, moved " + moved);
+		System.out.println("HierarchicalSolverTest passed");
+	}
+}
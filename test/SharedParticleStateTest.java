@@ -0,0 +1,72 @@
+package pbd;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/*
+ * Checks that readers of a shared state file cannot disturb the writer, that the body table describes
+ * 	each body's range, that a reader gives up on a writer stopped mid frame, and that a new writer continues
+ * 	the counters of the file it takes over.
+ */
+
+public class SharedParticleStateTest {
+	static private void check(boolean condition, String message) {
+		if (!condition) throw new AssertionError(message);
+	}
+
+	public static void main(String[] args) throws Exception {
+		Path file = Files.createTempFile("pbd-shared", ".bin");
+		try {
+			SharedParticleState writer = new SharedParticleState(file, 16, 4);
+			writer.beginFrame();
+			writer.write(new Vec2[] {new Vec2(1, 2), new Vec2(3, 4), new Vec2(5, 6)});
+			writer.write(new Vec2[] {new Vec2(7, 8)});
+			writer.endFrame();
+
+			//Opening readers mid run must leave the header alone
+			SharedParticleState first = SharedParticleState.openReader(file);
+			SharedParticleState second = SharedParticleState.openReader(file);
+			double[] positions = new double[32];
+			int[] ranges = new int[8];
+			check(second.read(positions, ranges) == 2, "second reader should see both bodies");
+			check(first.read(positions) == 4, "first reader should still see 4 particles");
+			check(ranges[0] == 0 && ranges[1] == 3 && ranges[2] == 3 && ranges[3] == 1, "body table ranges");
+			check(positions[6] == 7.0 && positions[7] == 8.0, "second body's position");
+			try {
+				first.beginFrame();
+				check(false, "a reader must not be able to write");
+			} catch (IllegalStateException e) {
+				//expected
+			}
+
+			//The writer keeps publishing after readers attached
+			writer.beginFrame();
+			writer.write(new Vec2[] {new Vec2(9, 9)});
+			writer.endFrame();
+			check(first.read(positions, ranges) == 1 && positions[0] == 9.0, "reader sees the writer's next frame");
+			check(first.getFrame() == 2, "two frames published");
+
+			//A writer that stops mid frame must not hang its readers
+			writer.beginFrame();
+			long start = System.nanoTime();
+			check(first.read(positions, ranges) == SharedParticleState.writerStalled, "a stalled writer should be reported");
+			check(first.read(positions) == SharedParticleState.writerStalled, "a stalled writer should be reported by the plain read");
+			check(first.read(positions, ranges, 0L) == SharedParticleState.writerStalled, "a zero timeout should give up right away");
+			check(System.nanoTime() - start < 5L * SharedParticleState.defaultReadTimeout, "the reads should give up after their timeout");
+			writer.close();
+
+			//A new writer takes over the counters instead of zeroing them, and ends the stalled frame
+			SharedParticleState next = new SharedParticleState(file, 16, 4);
+			check(first.read(positions, ranges) == 0, "the takeover publishes an empty frame");
+			next.beginFrame();
+			next.endFrame();
+			check(first.getFrame() == 3, "frame counter continues with a new writer");
+			next.close();
+			first.close();
+			second.close();
+		} finally {
+			Files.deleteIfExists(file);
+		}
+		System.out.println("SharedParticleStateTest passed");
+	}
+}
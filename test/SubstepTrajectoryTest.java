@@ -0,0 +1,47 @@
+package pbd;
+
+/*
+ * Checks that splitting a frame into substeps does not change how far a body moves per frame, which the
+ * 	adaptive timestep relies on, and that the controller asks for more substeps when motion is fast.
+ */
+
+public class SubstepTrajectoryTest {
+	static private void check(boolean condition, String message) {
+		if (!condition) throw new AssertionError(message);
+	}
+
+	//Free fall for a number of frames of 2.0 time units, each split into substeps, returns the drop of vertex 0.
+	static private double fall(int frames, int substeps) {
+		Collision everywhere = new Collision(new Vec2(-1e9, -1e9), new Vec2(1e9, 1e9));
+		NGon body = new NGon(6, 1.0, new Vec2(0.0, 0.0), 20.0);
+		double start = body.getVertices()[0].y;
+		double dT = 2.0 / substeps;
+		for (int f = 0; f < frames; ++f) {
+			for (int s = 0; s < substeps; ++s) {
+				body.update(dT, everywhere);
+				body.verlet(dT);
+			}
+		}
+		return body.getVertices()[0].y - start;
+	}
+
+	public static void main(String[] args) {
+		double reference = fall(60, 1);
+		double exact = 0.5 * NGon.gravity * 120.0 * 120.0;
+		check(reference > 0.0, "the body should fall");
+		for (int substeps : new int[] {2, 4, 8}) {
+			double drop = fall(60, substeps);
+			check(Math.abs(drop - reference) / reference < 0.02, substeps + " substeps fell " + drop + " against " + reference);
+			check(Math.abs(drop - exact) / exact < 0.02, substeps + " substeps fell " + drop + " against the exact " + exact);
+		}
+
+		//Fast motion relative to the edges asks for more substeps, and it recovers gradually
+		TimestepController controller = new TimestepController(0.25, 2.0, 0.2);
+		check(controller.getSubsteps(2.0) == 1, "starts at one substep");
+		controller.record(10.0, 10.0, 2.0);
+		check(controller.getSubsteps(2.0) == 5, "moving a full edge in 2.0 needs steps of 0.4, 5 substeps, got " + controller.getSubsteps(2.0));
+		controller.record(0.0, 10.0, 0.25);
+		check(controller.getSubsteps(2.0) == 4, "the step grows back by at most 25% at a time");
+		System.out.println("SubstepTrajectoryTest passed");
+	}
+}
@@ -0,0 +1,48 @@
+package pbd;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/*
+ * Writes a telemetry file spanning many blocks and checks that summarize reads every frame back, and that
+ * 	the solve aggregates describe the last step of a frame rather than a sum over its substeps.
+ */
+
+public class TelemetryLogTest {
+	static private void check(boolean condition, String message) {
+		if (!condition) throw new AssertionError(message);
+	}
+
+	public static void main(String[] args) throws Exception {
+		//Three substeps, each leaving the same residual, report that residual and not three times it
+		Vec2[] particles = {new Vec2(0.0, 0.0), new Vec2(3.0, 4.0)};
+		DistanceBatch distances = new DistanceBatch();
+		distances.add(0, 1, 4.0);
+		ContactBatch contacts = new ContactBatch();
+		StepTelemetry telemetry = new StepTelemetry();
+		for (int s = 0; s < 3; ++s) {
+			telemetry.beginStep();
+			telemetry.addSolve(distances, contacts, particles);
+		}
+		check(Math.abs(telemetry.getResidual() - 1.0) < 1e-12, "the residual should be the last step's, got " + telemetry.getResidual());
+
+		Path file = Files.createTempFile("pbd-telemetry", ".bin");
+		try {
+			int frames = 1000;
+			try (TelemetryLog log = new TelemetryLog(file)) {
+				StepTelemetry frame = new StepTelemetry();
+				for (int f = 0; f < frames; ++f) {
+					frame.kineticEnergy = f;
+					//Keep the queue from filling so no frame is dropped
+					while (!log.offer(f, frame)) Thread.sleep(1);
+				}
+			}
+			String summary = TelemetryLog.summarize(file);
+			check(summary.startsWith(frames + " frames (0 to " + (frames - 1) + "), 0 missing"), "unexpected summary:\n" + summary);
+			check(summary.contains("mean " + String.format("%-14.6g", (frames - 1) / 2.0)), "unexpected mean:\n" + summary);
+		} finally {
+			Files.delete(file);
+		}
+		System.out.println("TelemetryLogTest passed");
+	}
+}
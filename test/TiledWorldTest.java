@@ -0,0 +1,136 @@
+package pbd;
+
+/*
+ * Checks that splitting the world into tiles does not lose contacts between bodies of different tiles.
+ * The same scene is stepped with one tile and with two; in the split run the left body stays inside its
+ * 	own tile, so only the right body reaches across the tile edge.
+ * Both runs are stepped further to check that the squares come to rest touching rather than drifting apart.
+ * The same split scene is also stepped with the right body paused by a level of detail policy, it has to
+ * 	stay where it is while the left body is still pushed out of it.
+ * Last, a body far from the view has to fall as far as one under it, catching up on the frames it skipped.
+ */
+
+public class TiledWorldTest {
+	static private void check(boolean condition, String message) {
+		if (!condition) throw new AssertionError(message);
+	}
+
+	//Two overlapping squares, the left one spanning x 75 to 95 and the right one x 93 to 113, each with a
+	//	corner inside the other.
+	static private NGon[] run(int tilesX, int tilesY) {
+		NGon left = new NGon(4, 1.0, new Vec2(85.0, 50.0), 10.0);
+		NGon right = new NGon(4, 1.0, new Vec2(103.0, 55.0), 10.0);
+		try (TiledWorld world = new TiledWorld(new Collision(new Vec2(0.0, 0.0), new Vec2(200.0, 100.0)), tilesX, tilesY)) {
+			world.addBody(left);
+			world.addBody(right);
+			for (int frame = 0; frame < 10; ++frame) {
+				world.step(2.0, 10);
+			}
+			check(world.takeCulled().isEmpty(), "no body should leave the bounds");
+		}
+		return new NGon[] {left, right};
+	}
+
+	//This method returns how many vertices of a lie inside b, deeper past the hull edge than the contact slop.
+	//The bodies end up resting against each other, so a vertex may sit within the slop of the edge.
+	static private int inside(NGon a, NGon b) {
+		int count = 0;
+		Vec2[] hull = b.getVertices();
+		for (Vec2 v : a.getVertices()) {
+			for (int i = 0; i < hull.length; ++i) {
+				if (!Mechanics.intersectionNarrow(v, hull, b.getOrigin(), i)) continue;
+				Vec2 e = (i == hull.length - 1) ? hull[0] : hull[i + 1];
+				double nx = -(e.y - hull[i].y), ny = e.x - hull[i].x;
+				double depth = (nx * (v.x - hull[i].x) + ny * (v.y - hull[i].y)) / Math.sqrt(nx * nx + ny * ny);
+				if (Math.abs(depth) > 0.05) ++count;
+				break;
+			}
+		}
+		return count;
+	}
+
+	//Steps the split scene once with a view over the left body only, and the right body due to be paused.
+	static private void pausedReference() {
+		NGon left = new NGon(4, 1.0, new Vec2(85.0, 50.0), 10.0);
+		NGon right = new NGon(4, 1.0, new Vec2(103.0, 55.0), 10.0);
+		LevelOfDetail detail = new LevelOfDetail(new Collision(new Vec2(0.0, 0.0), new Vec2(90.0, 100.0)), 0.0);
+		try (TiledWorld world = new TiledWorld(new Collision(new Vec2(0.0, 0.0), new Vec2(200.0, 100.0)), 2, 1)) {
+			world.addBody(left);
+			world.addBody(right);
+			world.setLevelOfDetail(detail);
+			//Walk the right body down to the coarsest level, up to the frame it was last stepped on
+			for (int frame = 0; frame < 64 && !(detail.schedule(right) && detail.getLevel(right) == LevelOfDetail.levels - 1); ++frame);
+			check(detail.getLevel(right) == LevelOfDetail.levels - 1, "the right body should be at the coarsest level");
+			double rightX = right.getOrigin().x, rightY = right.getOrigin().y;
+			world.step(2.0, 10);
+			check(right.getOrigin().x == rightX && right.getOrigin().y == rightY, "the paused body should not move");
+			//The right body is still an axis aligned square, so depth inside it is past its left side
+			Collision box = right.col;
+			for (Vec2 v : left.getVertices()) {
+				if (v.y <= box.min.y || v.y >= box.max.y) continue;
+				check(v.x - box.min.x <= 0.05, "the left body should be pushed out of the paused one, it is " + (v.x - box.min.x) + " inside");
+			}
+		}
+	}
+
+	//Steps the overlapping squares for longer and checks how fast they drift apart once separated.
+	//Resolving a 2 pixel overlap should leave them touching, not push them apart at a speed of their own.
+	static private void separationSpeed(int tilesX, int tilesY) {
+		NGon left = new NGon(4, 1.0, new Vec2(85.0, 50.0), 10.0);
+		NGon right = new NGon(4, 1.0, new Vec2(103.0, 55.0), 10.0);
+		try (TiledWorld world = new TiledWorld(new Collision(new Vec2(0.0, 0.0), new Vec2(200.0, 200.0)), tilesX, tilesY)) {
+			world.addBody(left);
+			world.addBody(right);
+			double gap = 0.0;
+			for (int frame = 0; frame < 30; ++frame) {
+				world.step(2.0, 10);
+				if (frame == 9) gap = right.getOrigin().x - left.getOrigin().x;
+			}
+			double end = right.getOrigin().x - left.getOrigin().x;
+			check(end < 21.0, tilesX + " tiles: the squares should stay touching, their centers are " + end + " apart");
+			check((end - gap) / 20.0 < 0.01, tilesX + " tiles: the squares separate at " + (end - gap) / 20.0 + " per frame");
+		}
+	}
+
+	//Drops one body under a view that follows it and one far from it, the far one is only stepped every few
+	//	frames but has to fall about as far, since each of its steps covers the frames it skipped.
+	//No solver iterations, the levels get different iteration counts and the shape constraints slow a
+	//	falling body by how much they are solved, so only the integration is compared.
+	static private void catchUp() {
+		NGon near = new NGon(4, 1.0, new Vec2(100.0, 100.0), 10.0);
+		NGon far = new NGon(4, 1.0, new Vec2(5000.0, 100.0), 10.0);
+		Collision view = new Collision(new Vec2(50.0, 50.0), new Vec2(150.0, 150.0));
+		LevelOfDetail detail = new LevelOfDetail(view, 0.0);
+		try (TiledWorld world = new TiledWorld(new Collision(new Vec2(0.0, 0.0), new Vec2(10000.0, 10000.0)), 2, 2)) {
+			world.addBody(near);
+			world.addBody(far);
+			world.setLevelOfDetail(detail);
+			for (int frame = 0; frame < 240; ++frame) {
+				world.step(2.0, 0);
+				view.min.y = near.getOrigin().y - 50.0;
+				view.max.y = near.getOrigin().y + 50.0;
+			}
+			check(world.takeCulled().isEmpty(), "no body should leave the bounds");
+		}
+		check(detail.getLevel(near) == 0 && detail.getLevel(far) == LevelOfDetail.levels - 1, "the bodies should end at the finest and coarsest levels");
+		double nearFall = near.getOrigin().y - 100.0, farFall = far.getOrigin().y - 100.0;
+		check(Math.abs(farFall - nearFall) < 0.03 * nearFall, "the far body fell " + farFall + " while the near one fell " + nearFall);
+	}
+
+	public static void main(String[] args) {
+		NGon[] single = run(1, 1);
+		NGon[] split = run(2, 1);
+		check(inside(single[0], single[1]) == 0 && inside(single[1], single[0]) == 0, "one tile should separate the bodies");
+		check(inside(split[0], split[1]) == 0 && inside(split[1], split[0]) == 0, "two tiles should separate the bodies");
+		for (int b = 0; b < 2; ++b) {
+			double dx = split[b].getOrigin().x - single[b].getOrigin().x;
+			double dy = split[b].getOrigin().y - single[b].getOrigin().y;
+			check(Math.sqrt(dx * dx + dy * dy) < 0.5, "body " + b + " ended " + Math.sqrt(dx * dx + dy * dy) + " away from the single tile run");
+		}
+		separationSpeed(1, 1);
+		separationSpeed(2, 1);
+		pausedReference();
+		catchUp();
+		System.out.println("TiledWorldTest passed");
+	}
+}
@@ -0,0 +1,124 @@
+package pbd;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/*
+ * Checks the world queries against brute force over every body: point, region and ray queries on a set of
+ * 	random bodies, the batched forms in parallel against the sequential ones, and a point exactly on the
+ * 	grid's max edge.
+ */
+
+public class WorldQueryTest {
+	static private void check(boolean condition, String message) {
+		if (!condition) throw new AssertionError(message);
+	}
+
+	//This method returns whether any triangle of the body's hull holds the point.
+	static private boolean contains(NGon body, Vec2 point) {
+		for (int i = 0; i < body.getVertices().length; ++i) {
+			if (Mechanics.intersectionNarrow(point, body.getVertices(), body.getOrigin(), i)) return true;
+		}
+		return false;
+	}
+
+	//This method returns the closest t of the ray against every edge of every body, maxT if nothing is hit.
+	static private double bruteRay(NGon[] bodies, double oX, double oY, double dX, double dY, double maxT) {
+		double best = maxT;
+		for (NGon body : bodies) {
+			Vec2[] verts = body.getVertices();
+			for (int e = 0; e < verts.length; ++e) {
+				Vec2 a = verts[e], b = verts[(e + 1) % verts.length];
+				double eX = b.x - a.x, eY = b.y - a.y;
+				double denominator = dX * eY - dY * eX;
+				if (denominator == 0.0) continue;
+				double aX = a.x - oX, aY = a.y - oY;
+				double t = (aX * eY - aY * eX) / denominator;
+				double s = (aX * dY - aY * dX) / denominator;
+				if (t >= 0.0 && t < best && s >= 0.0 && s <= 1.0) best = t;
+			}
+		}
+		return best;
+	}
+
+	public static void main(String[] args) {
+		Random random = new Random(29);
+		NGon[] bodies = new NGon[300];
+		for (int b = 0; b < bodies.length; ++b) {
+			bodies[b] = new NGon(3 + random.nextInt(6), 0, new Vec2(random.nextDouble() * 1000.0, random.nextDouble() * 1000.0),
+					5.0 + random.nextDouble() * 25.0);
+		}
+		WorldQuery query = new WorldQuery(40.0);
+		query.rebuild(bodies, bodies.length);
+
+		//Points, including some outside every body's box
+		int points = 20000;
+		double[] pointData = new double[points * 2];
+		for (int i = 0; i < points; ++i) {
+			double x = -50.0 + random.nextDouble() * 1100.0, y = -50.0 + random.nextDouble() * 1100.0;
+			pointData[i * 2] = x;
+			pointData[i * 2 + 1] = y;
+			int found = query.queryPoint(x, y);
+			boolean any = false;
+			for (NGon body : bodies) any |= contains(body, new Vec2(x, y));
+			check(any == (found >= 0), "point " + x + ", " + y + " found " + found + " but brute force says " + any);
+			if (found >= 0) check(contains(bodies[found], new Vec2(x, y)), "point " + x + ", " + y + " is not in body " + found);
+		}
+
+		//Regions, every body whose box overlaps exactly once
+		int[] results = new int[bodies.length];
+		for (int i = 0; i < 2000; ++i) {
+			double x0 = -50.0 + random.nextDouble() * 1100.0, y0 = -50.0 + random.nextDouble() * 1100.0;
+			double x1 = x0 + random.nextDouble() * 200.0, y1 = y0 + random.nextDouble() * 200.0;
+			int found = query.queryRegion(x0, y0, x1, y1, results);
+			int[] expected = new int[bodies.length];
+			int count = 0;
+			for (int b = 0; b < bodies.length; ++b) {
+				Collision c = bodies[b].col;
+				if (c.min.x <= x1 && c.max.x >= x0 && c.min.y <= y1 && c.max.y >= y0) expected[count++] = b;
+			}
+			int[] got = Arrays.copyOf(results, found);
+			Arrays.sort(got);
+			check(Arrays.equals(got, Arrays.copyOf(expected, count)), "region " + i + " found " + found + " bodies, expected " + count);
+		}
+
+		//Rays in random and axis aligned directions
+		int rays = 5000;
+		double maxT = 2000.0;
+		double[] rayData = new double[rays * 4];
+		for (int i = 0; i < rays; ++i) {
+			double oX = random.nextDouble() * 1000.0, oY = random.nextDouble() * 1000.0;
+			double angle = (i % 5 == 0) ? (random.nextInt(4) * Math.PI * 0.5) : random.nextDouble() * 2.0 * Math.PI;
+			double dX = (i % 5 == 0) ? Math.rint(Math.cos(angle)) : Math.cos(angle);
+			double dY = (i % 5 == 0) ? Math.rint(Math.sin(angle)) : Math.sin(angle);
+			rayData[i * 4] = oX;
+			rayData[i * 4 + 1] = oY;
+			rayData[i * 4 + 2] = dX;
+			rayData[i * 4 + 3] = dY;
+			WorldQuery.RayHit hit = new WorldQuery.RayHit();
+			boolean any = query.raycast(oX, oY, dX, dY, maxT, hit);
+			double expected = bruteRay(bodies, oX, oY, dX, dY, maxT);
+			check(any == (expected < maxT), "ray " + i + " hit " + any + " but brute force found t " + expected);
+			if (any) check(hit.t == expected, "ray " + i + " hit at " + hit.t + ", brute force at " + expected);
+		}
+
+		//Batches, parallel against sequential
+		int[] sequentialPoints = new int[points], parallelPoints = new int[points];
+		query.queryPointBatch(pointData, points, sequentialPoints, false);
+		query.queryPointBatch(pointData, points, parallelPoints, true);
+		check(Arrays.equals(sequentialPoints, parallelPoints), "parallel point batch differs");
+		int[] bodyA = new int[rays], bodyB = new int[rays], edgeA = new int[rays], edgeB = new int[rays];
+		double[] tA = new double[rays], tB = new double[rays];
+		query.raycastBatch(rayData, rays, maxT, bodyA, edgeA, tA, false);
+		query.raycastBatch(rayData, rays, maxT, bodyB, edgeB, tB, true);
+		check(Arrays.equals(bodyA, bodyB) && Arrays.equals(edgeA, edgeB) && Arrays.equals(tA, tB), "parallel ray batch differs");
+
+		//A point on the right edge of a square whose box is exactly two cells wide
+		NGon square = new NGon(4, 0, new Vec2(100.0, 100.0), 10.0);
+		WorldQuery edge = new WorldQuery((square.col.max.x - square.col.min.x) * 0.5);
+		edge.rebuild(new NGon[] {square}, 1);
+		check(edge.queryPoint(square.col.max.x, 100.0) == 0, "a point on the grid's max edge should find the square");
+		check(edge.queryPoint(square.col.max.x + 1.0, 100.0) == -1, "a point past the grid should find nothing");
+		System.out.println("WorldQueryTest passed");
+	}
+}